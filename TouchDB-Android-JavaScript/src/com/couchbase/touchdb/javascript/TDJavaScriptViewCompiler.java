@@ -3,14 +3,21 @@ package com.couchbase.touchdb.javascript;
 import java.util.Map;
 
 import org.elasticsearch.script.javascript.support.NativeMap;
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Function;
-import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.WrapFactory;
+import org.mozilla.javascript.Wrapper;
 
 import android.util.Log;
 
+import com.couchbase.touchdb.TDBuiltinReduceBlock;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDViewCompiler;
 import com.couchbase.touchdb.TDViewMapBlock;
@@ -19,10 +26,30 @@ import com.couchbase.touchdb.TDViewReduceBlock;
 
 public class TDJavaScriptViewCompiler implements TDViewCompiler {
 
+    private int optimizationLevel = -1;
+
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * Sets Rhino's optimization level for compiling map functions. The default, -1, interprets
+     * them, which is all that Dalvik can run; levels 0 to 9 compile them to JVM bytecode, which
+     * is much faster where classes can be generated at runtime (i.e. on a JVM).
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
+    }
+
     @Override
     public TDViewMapBlock compileMapFunction(String mapSource, String language) {
         if (language.equals("javascript")) {
-            return new TDViewMapBlockRhino(mapSource);
+            try {
+                return new TDViewMapBlockRhino(mapSource, optimizationLevel);
+            } catch (RhinoException e) {
+                Log.e(TDDatabase.TAG, "Error compiling map function: " + mapSource, e);
+                return null;
+            }
         }
         throw new IllegalArgumentException(language + " is not supported");
     }
@@ -30,74 +57,128 @@ public class TDJavaScriptViewCompiler implements TDViewCompiler {
     @Override
     public TDViewReduceBlock compileReduceFunction(String reduceSource,
             String language) {
-        // TODO Auto-generated method stub
+        // CouchDB's built-in reduce functions are named rather than written in any language:
+        TDViewReduceBlock builtin = TDBuiltinReduceBlock.forName(reduceSource);
+        if (builtin != null) {
+            return builtin;
+        }
+        // TODO compile JavaScript reduce functions
         return null;
     }
 
 }
 
+/**
+ * A map block running a JavaScript map function. The function is compiled once, in a scope of
+ * its own whose "emit" function passes the rows straight to the emit block.
+ */
 class TDViewMapBlockRhino implements TDViewMapBlock {
 
-    private static WrapFactory wrapFactory = new CustomWrapFactory();
+    private static ContextFactory contextFactory = new RhinoContextFactory();
+    // Each thread's Context, re-entered for every document rather than created anew:
+    private static ThreadLocal<Context> threadContext = new ThreadLocal<Context>();
+
     private Scriptable globalScope;
-    private String src;
+    private Function mapFunction;
+    private EmitFunction emitFunction = new EmitFunction();
 
-    public TDViewMapBlockRhino(String src) {
-        this.src = src;
-        Context ctx = Context.enter();
+    public TDViewMapBlockRhino(String src, int optimizationLevel) {
+        Context ctx = enterContext();
         try {
-            ctx.setOptimizationLevel(-1);
-            ctx.setWrapFactory(wrapFactory);
             globalScope = ctx.initStandardObjects(null, true);
+            ScriptRuntime.setFunctionProtoAndParent(emitFunction, globalScope);
+            ScriptableObject.putProperty(globalScope, "emit", emitFunction);
+            // The Context is reused by the thread, so the level is only set while compiling:
+            int contextOptimizationLevel = ctx.getOptimizationLevel();
+            ctx.setOptimizationLevel(optimizationLevel);
+            try {
+                mapFunction = compileFunction(ctx, globalScope, src);
+            } finally {
+                ctx.setOptimizationLevel(contextOptimizationLevel);
+            }
         } finally {
             Context.exit();
         }
     }
 
+    private static Function compileFunction(Context ctx, Scriptable scope, String src) {
+        try {
+            return ctx.compileFunction(scope, src, "map", 1, null);
+        } catch (IllegalArgumentException e) {
+            // Not exactly one function, e.g. "(function(doc) {...})" or one followed by ";",
+            // so evaluate it as an expression instead, as map functions always used to be:
+            Object result = ctx.evaluateString(scope, "var map = " + src + "\nmap", "map", 1, null);
+            if (!(result instanceof Function)) {
+                throw Context.reportRuntimeError("map function source is not a function: " + src);
+            }
+            return (Function)result;
+        }
+    }
+
     @Override
     public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
-        Context ctx = Context.enter();
+        Context ctx = enterContext();
+        emitFunction.emitter = emitter;
         try {
-            ctx.setOptimizationLevel(-1);
-            ctx.setWrapFactory(wrapFactory);
+            Object[] functionArgs = { document };
+            mapFunction.call(ctx, globalScope, globalScope, functionArgs);
+        } finally {
+            emitFunction.emitter = null;
+            Context.exit();
+        }
+    }
 
-            //create a place to hold results
-            String placeHolder = "var map_results = [];";
-            ctx.evaluateString(globalScope, placeHolder, "placeHolder", 1, null);
+    private static Context enterContext() {
+        Context ctx = contextFactory.enterContext(threadContext.get());
+        threadContext.set(ctx);
+        return ctx;
+    }
 
-            //register the emit function
-            String emitFunction = "var emit = function(key, value) { map_results.push([key, value]); };";
-            ctx.evaluateString(globalScope, emitFunction, "emit", 1, null);
+    /**
+     * Configures each Context once, when it's created.
+     */
+    private static class RhinoContextFactory extends ContextFactory {
 
-            //register the map function
-            String mapSrc = "var map = " + src + ";";
-            ctx.evaluateString(globalScope, mapSrc, "map", 1, null);
+        private static WrapFactory wrapFactory = new CustomWrapFactory();
 
-            //find the map function and execute it
-            Function mapFun = (Function)globalScope.get("map", globalScope);
-            Object[] functionArgs = { document };
-            mapFun.call(ctx, globalScope, globalScope, functionArgs);
-
-            //now pull values out of the place holder and emit them
-            NativeArray mapResults = (NativeArray)globalScope.get("map_results", globalScope);
-            for(int i=0; i<mapResults.getLength(); i++) {
-                NativeArray mapResultItem = (NativeArray)mapResults.get(i);
-                if(mapResultItem.getLength() == 2) {
-                    Object key = mapResultItem.get(0);
-                    Object value = mapResultItem.get(1);
-                    emitter.emit(key, value);
-                } else {
-                    Log.e(TDDatabase.TAG, "Expected 2 element array with key and value");
-                }
+        @Override
+        protected void onContextCreated(Context ctx) {
+            super.onContextCreated(ctx);
+            ctx.setOptimizationLevel(-1);
+            ctx.setWrapFactory(wrapFactory);
+        }
+    }
 
-            }
+    /**
+     * The JavaScript emit(key, value) function, calling the emit block of the current map call.
+     */
+    private static class EmitFunction extends BaseFunction {
 
+        private static final long serialVersionUID = 1L;
 
+        TDViewMapEmitBlock emitter;
 
-        } finally {
-            Context.exit();
+        @Override
+        public Object call(Context ctx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            if (emitter == null) {
+                throw new IllegalStateException("emit() called outside of a map function");
+            }
+            Object key = (args.length > 0) ? javaValue(args[0]) : null;
+            Object value = (args.length > 1) ? javaValue(args[1]) : null;
+            emitter.emit(key, value);
+            return Undefined.instance;
         }
 
+        private static Object javaValue(Object jsValue) {
+            if (jsValue == Undefined.instance) {
+                return null;
+            }
+            if (jsValue instanceof Wrapper) {
+                // e.g. a property of the document, passed back as it is
+                return ((Wrapper)jsValue).unwrap();
+            }
+            return jsValue;
+        }
     }
 
     /**
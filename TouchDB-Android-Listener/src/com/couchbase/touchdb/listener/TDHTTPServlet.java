@@ -135,6 +135,7 @@ public class TDHTTPServlet extends HttpServlet {
         };
 
         router.setCallbackBlock(callbackBlock);
+        router.setStreamViewRows(true);
 
         listener.onServerThread(new Runnable() {
 
@@ -2,6 +2,8 @@ package com.couchbase.touchdb.testapp.javascript.tests;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,6 +11,8 @@ import java.util.Map;
 import com.couchbase.touchdb.TDServer;
 import com.couchbase.touchdb.TDStatus;
 import com.couchbase.touchdb.TDView;
+import com.couchbase.touchdb.TDViewMapBlock;
+import com.couchbase.touchdb.TDViewMapEmitBlock;
 import com.couchbase.touchdb.javascript.TDJavaScriptViewCompiler;
 import com.couchbase.touchdb.testapp.tests.Router;
 
@@ -45,8 +49,13 @@ public class JavaScriptDesignDocument extends Router {
         Map<String,Object> ddocViewTest = new HashMap<String,Object>();
         ddocViewTest.put("map", "function(doc) { if(doc.message) { emit(doc.message, 1); } }");
 
+        Map<String,Object> ddocViewCount = new HashMap<String,Object>();
+        ddocViewCount.put("map", "function(doc) { if(doc.message) { emit(doc.message, 1); } }");
+        ddocViewCount.put("reduce", "_count");
+
         Map<String,Object> ddocViews = new HashMap<String,Object>();
         ddocViews.put("test", ddocViewTest);
+        ddocViews.put("count", ddocViewCount);
 
         Map<String,Object> ddoc = new HashMap<String,Object>();
         ddoc.put("views", ddocViews);
@@ -80,7 +89,70 @@ public class JavaScriptDesignDocument extends Router {
         // Query the view and check the result:
         send(server, "GET", "/db/_design/doc/_view/test", TDStatus.OK, expectedResult);
 
+        // Query the view with the built-in reduce function:
+        Map<String,Object> reducedRow = new HashMap<String,Object>();
+        reducedRow.put("key", null);
+        reducedRow.put("value", 3);
+        List<Map<String,Object>> reducedRows = new ArrayList<Map<String,Object>>();
+        reducedRows.add(reducedRow);
+        Map<String,Object> reducedResult = new HashMap<String,Object>();
+        reducedResult.put("offset", 0);
+        reducedResult.put("total_rows", 1);
+        reducedResult.put("rows", reducedRows);
+        send(server, "GET", "/db/_design/doc/_view/count?reduce=true", TDStatus.OK, reducedResult);
+
         server.close();
     }
 
+    @SuppressWarnings("unchecked")
+    public void testCompiledMapFunction() {
+
+        TDJavaScriptViewCompiler compiler = new TDJavaScriptViewCompiler();
+        TDViewMapBlock mapBlock = compiler.compileMapFunction(
+                "function(doc) { emit(doc.message); emit([doc.message, 2], doc.nested); }", "javascript");
+        assertNotNull(mapBlock);
+
+        final List<Object> keys = new ArrayList<Object>();
+        final List<Object> values = new ArrayList<Object>();
+        TDViewMapEmitBlock emitter = new TDViewMapEmitBlock() {
+
+            @Override
+            public void emit(Object key, Object value) {
+                keys.add(key);
+                values.add(value);
+            }
+        };
+
+        // The compiled function is called again for each document:
+        Map<String,Object> nested = new HashMap<String,Object>();
+        nested.put("a", "b");
+        for (String message : new String[] { "hello", "bonjour" }) {
+            Map<String,Object> doc = new HashMap<String,Object>();
+            doc.put("message", message);
+            doc.put("nested", nested);
+            keys.clear();
+            values.clear();
+            mapBlock.map(doc, emitter);
+
+            assertEquals(2, keys.size());
+            assertEquals(message, keys.get(0));
+            assertNull(values.get(0));
+            assertEquals(Arrays.asList(message, 2.0), new ArrayList<Object>((List<Object>)keys.get(1)));
+            assertEquals(nested, values.get(1));
+        }
+
+        // As do functions in parentheses or followed by a semicolon:
+        for (String source : new String[] { "(function(doc) { emit(doc.message); })", "function(doc) { emit(doc.message); };" }) {
+            mapBlock = compiler.compileMapFunction(source, "javascript");
+            assertNotNull(mapBlock);
+            keys.clear();
+            mapBlock.map(Collections.<String,Object>singletonMap("message", "hi"), emitter);
+            assertEquals(Arrays.asList((Object)"hi"), keys);
+        }
+
+        // Source that doesn't compile, or isn't a function, gives no map block:
+        assertNull(compiler.compileMapFunction("42", "javascript"));
+        assertNull(compiler.compileMapFunction("function(doc) { emit(doc.message, ", "javascript"));
+    }
+
 }
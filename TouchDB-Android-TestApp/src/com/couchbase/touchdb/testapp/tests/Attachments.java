@@ -17,23 +17,44 @@
 
 package com.couchbase.touchdb.testapp.tests;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import junit.framework.Assert;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
 import android.test.AndroidTestCase;
 
 import com.couchbase.touchdb.TDAttachment;
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
 import com.couchbase.touchdb.TDBlobKey;
 import com.couchbase.touchdb.TDBlobStore;
+import com.couchbase.touchdb.TDBody;
 import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDDocumentReader;
+import com.couchbase.touchdb.TDQueryOptions;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.TDStreamedAttachmentData;
+import com.couchbase.touchdb.TDView;
+import com.couchbase.touchdb.TDViewMapBlock;
+import com.couchbase.touchdb.TDViewMapEmitBlock;
+import com.couchbase.touchdb.TDViewRowIterator;
 import com.couchbase.touchdb.support.Base64;
+import com.couchbase.touchdb.support.GzipUtils;
 
 public class Attachments extends AndroidTestCase {
 
@@ -239,4 +260,501 @@ public class Attachments extends AndroidTestCase {
         db.close();
     }
 
+    public void testInlineAttachments() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+
+        TDStatus status = new TDStatus();
+        Map<String,Object> rev1Properties = new HashMap<String,Object>();
+        rev1Properties.put("foo", 1);
+        TDRevision rev1 = db.putRevision(new TDRevision(rev1Properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // A small attachment goes into the database, a large one into a file:
+        byte[] small = "tiny icon".getBytes();
+        byte[] large = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 2];
+        Arrays.fill(large, (byte)'x');
+        status = db.insertAttachmentForSequenceWithNameAndType(small, rev1.getSequence(), "small", "text/plain", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        status = db.insertAttachmentForSequenceWithNameAndType(large, rev1.getSequence(), "large", "text/plain", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        Assert.assertFalse(new File(attachments.pathForKey(TDBlobStore.keyForBlob(small))).exists());
+        Assert.assertTrue(new File(attachments.pathForKey(TDBlobStore.keyForBlob(large))).exists());
+        Assert.assertEquals(2, attachments.count());
+
+        TDAttachment attachment = db.getAttachmentForSequence(rev1.getSequence(), "small", status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertTrue(Arrays.equals(small, attachment.getData()));
+        attachment = db.getAttachmentForSequence(rev1.getSequence(), "large", status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertTrue(Arrays.equals(large, attachment.getData()));
+
+        Map<String,Object> attachmentDict = db.getAttachmentsDictForSequenceWithContent(rev1.getSequence(), true);
+        @SuppressWarnings("unchecked")
+        Map<String,Object> smallDict = (Map<String,Object>)attachmentDict.get("small");
+        Assert.assertEquals(Base64.encodeBytes(small), smallDict.get("data"));
+
+        db.close();
+    }
+
+    public void testCompressedAttachments() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+        attachments.setCompressionEnabled(true);
+
+        TDStatus status = new TDStatus();
+        Map<String,Object> rev1Properties = new HashMap<String,Object>();
+        rev1Properties.put("foo", 1);
+        TDRevision rev1 = db.putRevision(new TDRevision(rev1Properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // Text gets gzipped, an image doesn't:
+        byte[] text = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 4];
+        Arrays.fill(text, (byte)'x');
+        byte[] image = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 2];
+        Arrays.fill(image, (byte)'y');
+        status = db.insertAttachmentForSequenceWithNameAndType(text, rev1.getSequence(), "text", "text/plain; charset=utf-8", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        status = db.insertAttachmentForSequenceWithNameAndType(image, rev1.getSequence(), "image", "image/png", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        TDBlobKey textKey = TDBlobStore.keyForBlob(text);
+        Assert.assertFalse(new File(attachments.pathForKey(textKey)).exists());
+        Assert.assertTrue(new File(attachments.pathForKey(TDBlobStore.keyForBlob(image))).exists());
+
+        // Reading decompresses by default, but the gzipped data can be had as-is:
+        TDAttachment attachment = db.getAttachmentForSequence(rev1.getSequence(), "text", status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(TDAttachmentEncoding.TDAttachmentEncodingNone, attachment.getEncoding());
+        Assert.assertTrue(Arrays.equals(text, attachment.getData()));
+        attachment = db.getAttachmentForSequence(rev1.getSequence(), "text", true, status);
+        Assert.assertEquals(TDAttachmentEncoding.TDAttachmentEncodingGZIP, attachment.getEncoding());
+        Assert.assertTrue(attachment.getData().length < text.length);
+        Assert.assertTrue(Arrays.equals(text, GzipUtils.decompress(attachment.getData())));
+        attachment = db.getAttachmentForSequence(rev1.getSequence(), "image", true, status);
+        Assert.assertEquals(TDAttachmentEncoding.TDAttachmentEncodingNone, attachment.getEncoding());
+
+        // The digest is still that of the uncompressed data:
+        Map<String,Object> attachmentDict = db.getAttachmentsDictForSequenceWithContent(rev1.getSequence(), true, true);
+        @SuppressWarnings("unchecked")
+        Map<String,Object> textDict = (Map<String,Object>)attachmentDict.get("text");
+        Assert.assertEquals("gzip", textDict.get("encoding"));
+        Assert.assertEquals("sha1-" + Base64.encodeBytes(textKey.getBytes()), textDict.get("digest"));
+        Assert.assertEquals(text.length, textDict.get("length"));
+
+        db.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testStreamedAttachments() throws IOException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+
+        byte[] large = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 2];
+        Arrays.fill(large, (byte)'x');
+        String json = "{\"foo\":1,\"_attachments\":{" +
+                "\"small\":{\"content_type\":\"text/plain\",\"data\":\"" + Base64.encodeBytes("tiny".getBytes()) + "\"}," +
+                "\"large\":{\"data\":\"" + Base64.encodeBytes(large) + "\",\"content_type\":\"text/plain\"}}}";
+
+        // The reader stores the blobs and leaves only their digests in the properties:
+        Map<String,Object> properties = new TDDocumentReader(attachments).readDocument(json.getBytes());
+        Assert.assertEquals(1, properties.get("foo"));
+        Map<String,Object> largeDict = (Map<String,Object>)((Map<String,Object>)properties.get("_attachments")).get("large");
+        Assert.assertNull(largeDict.get("data"));
+        Assert.assertTrue(largeDict.get("follows") instanceof TDDocumentReader.StreamedAttachment);
+        Assert.assertEquals("sha1-" + Base64.encodeBytes(TDBlobStore.keyForBlob(large).getBytes()), largeDict.get("digest"));
+        Assert.assertEquals(2, attachments.count());
+
+        TDStatus status = new TDStatus();
+        TDRevision rev1 = db.putRevision(new TDRevision(properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        TDAttachment attachment = db.getAttachmentForSequence(rev1.getSequence(), "small", status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertTrue(Arrays.equals("tiny".getBytes(), attachment.getData()));
+        Assert.assertEquals("text/plain", attachment.getContentType());
+        attachment = db.getAttachmentForSequence(rev1.getSequence(), "large", status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertTrue(Arrays.equals(large, attachment.getData()));
+
+        Map<String,Object> attachmentDict = db.getAttachmentsDictForSequenceWithContent(rev1.getSequence(), false);
+        Assert.assertEquals(large.length, ((Map<String,Object>)attachmentDict.get("large")).get("length"));
+
+        // Invalid Base64 is rejected without leaving anything behind:
+        try {
+            new TDDocumentReader(attachments).readDocument("{\"_attachments\":{\"bad\":{\"data\":\"abc\"}}}".getBytes());
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(2, attachments.count());
+
+        // A revision that's rejected doesn't leave its streamed attachment behind:
+        byte[] other = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 2];
+        Arrays.fill(other, (byte)'y');
+        String conflictJSON = "{\"_id\":\"" + rev1.getDocId() + "\",\"_attachments\":{" +
+                "\"other\":{\"data\":\"" + Base64.encodeBytes(other) + "\"}}}";
+        properties = new TDDocumentReader(attachments).readDocument(conflictJSON.getBytes());
+        Assert.assertEquals(3, attachments.count());
+        db.putRevision(new TDRevision(properties), null, false, status);
+        Assert.assertEquals(TDStatus.CONFLICT, status.getCode());
+        Assert.assertEquals(2, attachments.count());
+
+        // Only the reader can mark an attachment as already stored; a document claiming an
+        // existing blob with "follows" is taken as having a stub, which it has no parent for:
+        String claimJSON = "{\"_attachments\":{\"claim\":{\"follows\":true,\"length\":" + large.length +
+                ",\"digest\":\"" + largeDict.get("digest") + "\"}}}";
+        properties = new TDDocumentReader(attachments).readDocument(claimJSON.getBytes());
+        db.putRevision(new TDRevision(properties), null, false, status);
+        Assert.assertEquals(TDStatus.NOT_FOUND, status.getCode());
+        Assert.assertEquals(2, attachments.count());
+
+        db.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testStreamedAttachmentEncoding() throws IOException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        TDStatus status = new TDStatus();
+        Map<String,Object> rev1Properties = new HashMap<String,Object>();
+        rev1Properties.put("foo", 1);
+        TDRevision rev1 = db.putRevision(new TDRevision(rev1Properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // 10000 isn't a multiple of 3, so the encoding ends with padding:
+        byte[] large = new byte[10000];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte)i;
+        }
+        status = db.insertAttachmentForSequenceWithNameAndType(large, rev1.getSequence(), "large", "application/octet-stream", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // The data isn't loaded until the properties are serialized:
+        TDRevision gotRev1 = db.getDocumentWithIDAndRev(rev1.getDocId(), rev1.getRevId(),
+                EnumSet.of(TDDatabase.TDContentOptions.TDIncludeAttachments, TDDatabase.TDContentOptions.TDStreamAttachments));
+        Map<String,Object> largeDict = (Map<String,Object>)((Map<String,Object>)gotRev1.getProperties().get("_attachments")).get("large");
+        Assert.assertTrue(largeDict.get("data") instanceof TDStreamedAttachmentData);
+
+        byte[] json = new TDBody(gotRev1.getProperties()).getJson();
+        Map<String,Object> parsed = new ObjectMapper().readValue(json, Map.class);
+        Assert.assertEquals(1, parsed.get("foo"));
+        largeDict = (Map<String,Object>)((Map<String,Object>)parsed.get("_attachments")).get("large");
+        Assert.assertEquals(Base64.encodeBytes(large), largeDict.get("data"));
+        Assert.assertEquals(large.length, largeDict.get("length"));
+
+        // A missing blob is left as a stub, just as it is when not streaming:
+        db.getAttachments().deleteBlobForKey(TDBlobStore.keyForBlob(large));
+        gotRev1 = db.getDocumentWithIDAndRev(rev1.getDocId(), rev1.getRevId(),
+                EnumSet.of(TDDatabase.TDContentOptions.TDIncludeAttachments, TDDatabase.TDContentOptions.TDStreamAttachments));
+        largeDict = (Map<String,Object>)((Map<String,Object>)gotRev1.getProperties().get("_attachments")).get("large");
+        Assert.assertNull(largeDict.get("data"));
+        Assert.assertEquals(Boolean.TRUE, largeDict.get("stub"));
+        Assert.assertNotNull(new TDBody(gotRev1.getProperties()).getJson());
+
+        db.close();
+    }
+
+    private static Map<String,Object> attachmentStub() {
+        Map<String,Object> stub = new HashMap<String,Object>();
+        stub.put("stub", true);
+        return stub;
+    }
+
+    private static Map<String,Object> attachmentWithData(byte[] data) {
+        Map<String,Object> attachment = new HashMap<String,Object>();
+        attachment.put("content_type", "text/plain");
+        attachment.put("data", Base64.encodeBytes(data));
+        return attachment;
+    }
+
+    public void testSharedAttachmentSets() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+
+        byte[] attachA = "This is attachment A".getBytes();
+        byte[] attachB = "This is attachment B".getBytes();
+        byte[] attachC = "This is attachment C".getBytes();
+
+        Map<String,Object> attachmentDict = new HashMap<String,Object>();
+        attachmentDict.put("a", attachmentWithData(attachA));
+        attachmentDict.put("b", attachmentWithData(attachB));
+        Map<String,Object> properties = new HashMap<String,Object>();
+        properties.put("_attachments", attachmentDict);
+        TDStatus status = new TDStatus();
+        TDRevision rev1 = db.putRevision(new TDRevision(properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // rev2 keeps both attachments, so it shares rev1's set:
+        attachmentDict = new HashMap<String,Object>();
+        attachmentDict.put("a", attachmentStub());
+        attachmentDict.put("b", attachmentStub());
+        properties = new HashMap<String,Object>();
+        properties.put("_id", rev1.getDocId());
+        properties.put("_attachments", attachmentDict);
+        TDRevision rev2 = db.putRevision(new TDRevision(properties), rev1.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        Assert.assertEquals(db.getAttachmentsDictForSequenceWithContent(rev1.getSequence(), false),
+                db.getAttachmentsDictForSequenceWithContent(rev2.getSequence(), false));
+
+        // rev3 drops b and adds c, which must not affect rev2:
+        attachmentDict = new HashMap<String,Object>();
+        attachmentDict.put("a", attachmentStub());
+        attachmentDict.put("c", attachmentWithData(attachC));
+        properties = new HashMap<String,Object>();
+        properties.put("_id", rev1.getDocId());
+        properties.put("_attachments", attachmentDict);
+        TDRevision rev3 = db.putRevision(new TDRevision(properties), rev2.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        Map<String,Object> rev2Attachments = db.getAttachmentsDictForSequenceWithContent(rev2.getSequence(), false);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")), rev2Attachments.keySet());
+        Map<String,Object> rev3Attachments = db.getAttachmentsDictForSequenceWithContent(rev3.getSequence(), false);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "c")), rev3Attachments.keySet());
+        Assert.assertEquals(rev2Attachments.get("a"), rev3Attachments.get("a"));
+        TDAttachment attachment = db.getAttachmentForSequence(rev2.getSequence(), "b", status);
+        Assert.assertTrue(Arrays.equals(attachB, attachment.getData()));
+        attachment = db.getAttachmentForSequence(rev3.getSequence(), "c", status);
+        Assert.assertTrue(Arrays.equals(attachC, attachment.getData()));
+
+        // A stub for an attachment the parent doesn't have is an error:
+        attachmentDict = new HashMap<String,Object>();
+        attachmentDict.put("b", attachmentStub());
+        properties = new HashMap<String,Object>();
+        properties.put("_id", rev1.getDocId());
+        properties.put("_attachments", attachmentDict);
+        db.putRevision(new TDRevision(properties), rev3.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.NOT_FOUND, status.getCode());
+
+        // Once only rev3 is left, b's set and blob go away:
+        status = db.compact();
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Set<TDBlobKey> expected = new HashSet<TDBlobKey>();
+        expected.add(TDBlobStore.keyForBlob(attachA));
+        expected.add(TDBlobStore.keyForBlob(attachC));
+        Assert.assertEquals(expected, attachments.allKeys());
+        Assert.assertEquals(2, db.getAttachmentsDictForSequenceWithContent(rev3.getSequence(), false).size());
+
+        db.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBatchedAttachmentsDicts() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        // More docs than the view row iterator reads at once, every third one with an attachment:
+        int numDocs = TDViewRowIterator.DOC_BATCH_SIZE + 50;
+        List<Long> sequences = new ArrayList<Long>();
+        TDStatus status = new TDStatus();
+        for (int i = 0; i < numDocs; i++) {
+            Map<String,Object> properties = new HashMap<String,Object>();
+            properties.put("_id", String.format("doc%03d", i));
+            if (i % 3 == 0) {
+                Map<String,Object> attachmentDict = new HashMap<String,Object>();
+                attachmentDict.put("attach", attachmentWithData(("Attachment of doc " + i).getBytes()));
+                properties.put("_attachments", attachmentDict);
+            }
+            TDRevision rev = db.putRevision(new TDRevision(properties), null, false, status);
+            Assert.assertEquals(TDStatus.CREATED, status.getCode());
+            sequences.add(rev.getSequence());
+        }
+
+        // One query gives the same dictionaries as a query per sequence:
+        EnumSet<TDDatabase.TDContentOptions> contentOptions = EnumSet.noneOf(TDDatabase.TDContentOptions.class);
+        Map<Long,Map<String,Object>> attachmentsDicts = db.getAttachmentsDictsForSequences(sequences, contentOptions);
+        Assert.assertEquals((numDocs + 2) / 3, attachmentsDicts.size());
+        for (Long sequence : sequences) {
+            Assert.assertEquals(db.getAttachmentsDictForSequenceWithContent(sequence, contentOptions), attachmentsDicts.get(sequence));
+        }
+
+        // More sequences than fit in one query are looked up in several:
+        List<Long> manySequences = new ArrayList<Long>();
+        while (manySequences.size() <= 2 * TDDatabase.MAX_SEQUENCES_PER_QUERY) {
+            manySequences.addAll(sequences);
+        }
+        Assert.assertEquals(attachmentsDicts, db.getAttachmentsDictsForSequences(manySequences, contentOptions));
+
+        // Documents included in _all_docs and view rows get their attachments:
+        TDQueryOptions options = new TDQueryOptions();
+        options.setIncludeDocs(true);
+        List<Map<String,Object>> rows = (List<Map<String,Object>>)db.getAllDocs(options).get("rows");
+        Assert.assertEquals(numDocs, rows.size());
+        for (int i = 0; i < numDocs; i++) {
+            Map<String,Object> doc = (Map<String,Object>)rows.get(i).get("doc");
+            Assert.assertEquals(attachmentsDicts.get(sequences.get(i)), doc.get("_attachments"));
+        }
+
+        TDView view = db.getViewNamed("default/ids");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), null);
+            }
+        }, null, "1");
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(numDocs, rows.size());
+        for (int i = 0; i < numDocs; i++) {
+            Map<String,Object> doc = (Map<String,Object>)rows.get(i).get("doc");
+            Assert.assertEquals(String.format("doc%03d", i), doc.get("_id"));
+            Assert.assertEquals(attachmentsDicts.get(sequences.get(i)), doc.get("_attachments"));
+        }
+
+        db.close();
+    }
+
+    public void testChunkedBlobs() throws IOException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+        attachments.setChunkingEnabled(true);
+
+        byte[] version1 = new byte[TDBlobStore.CHUNKING_THRESHOLD * 4];
+        new Random(42).nextBytes(version1);
+        byte[] version2 = version1.clone();
+        for(int i = 0; i < 100; i++) {
+            version2[version2.length / 2 + i] ^= 0xFF;
+        }
+
+        TDBlobKey key1 = new TDBlobKey();
+        TDBlobKey key2 = new TDBlobKey();
+        Assert.assertTrue(attachments.storeBlob(version1, key1));
+        long sizeAfterVersion1 = attachments.totalDataSize();
+        Assert.assertTrue(attachments.storeBlob(version2, key2));
+        Assert.assertEquals(TDBlobStore.keyForBlob(version1), key1);
+        Assert.assertEquals(TDBlobStore.keyForBlob(version2), key2);
+        Assert.assertFalse(new File(attachments.pathForKey(key1)).exists());
+
+        // The second version only added the chunks around the edit:
+        Assert.assertTrue(sizeAfterVersion1 >= version1.length);
+        Assert.assertTrue(attachments.totalDataSize() - sizeAfterVersion1 < version2.length / 4);
+
+        Assert.assertTrue(Arrays.equals(version1, attachments.blobForKey(key1)));
+        Assert.assertTrue(Arrays.equals(version2, attachments.blobForKey(key2)));
+        InputStream in = attachments.blobStreamForKey(key2, true);
+        byte[] streamed = new byte[version2.length];
+        int offset = 0;
+        int numRead;
+        while((numRead = in.read(streamed, offset, streamed.length - offset)) > 0) {
+            offset += numRead;
+        }
+        Assert.assertEquals(-1, in.read());
+        in.close();
+        Assert.assertTrue(Arrays.equals(version2, streamed));
+
+        // Deleting the first version keeps the chunks the second one uses:
+        List<TDBlobKey> keep = new ArrayList<TDBlobKey>();
+        keep.add(key2);
+        Assert.assertTrue(attachments.deleteBlobsExceptWithKeys(keep) > 0);
+        Assert.assertNull(attachments.blobForKey(key1));
+        Assert.assertTrue(Arrays.equals(version2, attachments.blobForKey(key2)));
+        Assert.assertTrue(attachments.allKeys().contains(key2));
+        Assert.assertFalse(attachments.allKeys().contains(key1));
+
+        db.close();
+    }
+
+    public void testMappedBlobs() throws IOException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+
+        byte[] large = new byte[TDBlobStore.DEFAULT_MAPPING_THRESHOLD * 2];
+        new Random(42).nextBytes(large);
+        byte[] small = "this is a small blob".getBytes();
+
+        TDBlobKey largeKey = new TDBlobKey();
+        TDBlobKey smallKey = new TDBlobKey();
+        Assert.assertTrue(attachments.storeBlob(large, largeKey));
+        Assert.assertTrue(attachments.storeBlob(small, smallKey));
+
+        for(int pass = 0; pass < 2; pass++) {
+            ByteBuffer buffer = attachments.blobBufferForKey(largeKey);
+            Assert.assertTrue(buffer.isReadOnly());
+            Assert.assertEquals(large.length, buffer.remaining());
+            byte[] contents = new byte[buffer.remaining()];
+            buffer.get(contents);
+            Assert.assertTrue(Arrays.equals(large, contents));
+        }
+
+        ByteBuffer buffer = attachments.blobBufferForKey(smallKey);
+        Assert.assertTrue(buffer.isReadOnly());
+        byte[] contents = new byte[buffer.remaining()];
+        buffer.get(contents);
+        Assert.assertTrue(Arrays.equals(small, contents));
+
+        Assert.assertNull(attachments.blobBufferForKey(TDBlobStore.keyForBlob("missing".getBytes())));
+
+        db.close();
+    }
+
+    public void testCrashSafeBlobWrites() throws IOException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        TDBlobStore attachments = db.getAttachments();
+
+        byte[] data = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 4];
+        new Random(42).nextBytes(data);
+        TDBlobKey key = TDBlobStore.keyForBlob(data);
+
+        // Simulate a file truncated by a crash; storing the blob again must repair it:
+        File file = new File(attachments.pathForKey(key));
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data, 0, data.length / 2);
+        out.close();
+        Assert.assertTrue(attachments.storeBlob(data, new TDBlobKey()));
+        Assert.assertEquals(data.length, file.length());
+        Assert.assertTrue(Arrays.equals(data, attachments.blobForKey(key)));
+
+        // Deferred syncing, batched with the transaction commit:
+        attachments.setSyncDeferred(true);
+        byte[] data2 = new byte[data.length];
+        new Random(43).nextBytes(data2);
+        TDBlobKey key2 = new TDBlobKey();
+        Assert.assertTrue(db.beginTransaction());
+        Assert.assertTrue(attachments.storeBlob(data2, key2));
+        Assert.assertTrue(db.endTransaction(true));
+        Assert.assertTrue(Arrays.equals(data2, attachments.blobForKey(key2)));
+
+        // Temp files left by an interrupted write are cleaned up, but not those of a write
+        // that may still be in progress:
+        File tempFile = new File(file.getParent(), "tmp1" + TDBlobStore.TEMP_FILE_EXTENSION);
+        Assert.assertTrue(tempFile.createNewFile());
+        Assert.assertTrue(tempFile.setLastModified(System.currentTimeMillis() - 2 * TDBlobStore.TEMP_FILE_MAX_AGE));
+        File activeTempFile = new File(file.getParent(), "tmp2" + TDBlobStore.TEMP_FILE_EXTENSION);
+        Assert.assertTrue(activeTempFile.createNewFile());
+        new TDBlobStore(file.getParent());
+        Assert.assertFalse(tempFile.exists());
+        Assert.assertTrue(activeTempFile.exists());
+        activeTempFile.delete();
+
+        db.close();
+    }
+
 }
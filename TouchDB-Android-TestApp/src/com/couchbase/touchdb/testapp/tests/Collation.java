@@ -1,5 +1,9 @@
 package com.couchbase.touchdb.testapp.tests;
 
+import java.text.Collator;
+import java.util.Locale;
+import java.util.Random;
+
 import junit.framework.Assert;
 
 import org.codehaus.jackson.map.ObjectMapper;
@@ -8,6 +12,8 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.couchbase.touchdb.TDCollateJSON;
+import com.couchbase.touchdb.TDView.TDViewCollation;
+import com.couchbase.touchdb.TDViewSortKey;
 
 public class Collation extends AndroidTestCase {
 
@@ -108,6 +114,142 @@ public class Collation extends AndroidTestCase {
 
     }
 
+    public void testSortKeys() {
+        String[] keys = { "null", "false", "true", "-1000", "-1.5", "0", "1", "123", "1234.5",
+                "\"\"", "\"1234\"", "\"123\"", "\"a\"", "\"A\"", "\"aa\"", "\"B\"", "\"b\"",
+                encode("\001"), encode("\t"), encode(" "), encode("fr\u00e9d"), encode("\u00f6m\u00f6"), encode("omo"),
+                "[]", "[null]", "[false]", "[45]", "[45,67]", "[123]", "[123.4,\"wow\"]", "[[]]",
+                "[1,[2,3],4]", "[1,[2,3.1],4,5,6]", "[\"b\"]", "[\"b\",\"c\",\"a\"]",
+                "{}", "{\"a\":1}", "{\"a\":2}", "{\"a\":1,\"b\":2}", "{\"b\":1}" };
+        int[] modes = { kTDCollateJSON_Unicode, kTDCollateJSON_Raw, kTDCollateJSON_ASCII };
+        TDViewCollation[] collations = { TDViewCollation.TDViewCollationUnicode, TDViewCollation.TDViewCollationRaw,
+                TDViewCollation.TDViewCollationASCII };
+        // Sort keys compare as bytes the way their JSON compares in the collator:
+        for (int m = 0; m < modes.length; m++) {
+            for (String key1 : keys) {
+                byte[] sortKey1 = TDViewSortKey.sortKeyForJSON(key1, collations[m]);
+                for (String key2 : keys) {
+                    byte[] sortKey2 = TDViewSortKey.sortKeyForJSON(key2, collations[m]);
+                    int expected = TDCollateJSON.testCollateJSON(modes[m], 0, key1, 0, key2);
+                    Assert.assertEquals(collations[m] + ": " + key1 + " vs " + key2,
+                            expected, TDViewSortKey.compare(sortKey1, sortKey2));
+                }
+            }
+        }
+    }
+
+    public void testCollateUnicodeBenchmark() {
+        String[] asciiWords = { "apple", "Apple", "apples", "banana", "Banana split", "cherry 2",
+                "cherry 10", "date", "Elderberry", "fig", "grape", "Grapefruit" };
+        String[] otherWords = { "fr\u00e9d", "Fr\u00e9d", "\u00f6m\u00f6", "omo", "na\u00efve", "naive",
+                "caf\u00e9", "cafe", "\u00e9clair", "eclair", "r\u00e9sum\u00e9", "resume" };
+        int rounds = 200;
+
+        // The native collator resolves ASCII strings itself, agreeing with the Java collator:
+        Collator collator = Collator.getInstance();
+        for (String word1 : asciiWords) {
+            for (String word2 : asciiWords) {
+                int expected = Integer.signum(collator.compare(word1, word2));
+                Assert.assertEquals(word1 + " vs " + word2, expected,
+                        TDCollateJSON.testCollateJSON(kTDCollateJSON_Unicode, 0, encode(word1), 0, encode(word2)));
+            }
+        }
+
+        // Comparisons per second through the native collator, and as it used to call back into
+        // Java (getting a new Collator for every comparison):
+        Log.i(TAG, String.format("Unicode collation of ASCII strings: %d/sec native, %d/sec with a Collator per comparison",
+                nativeComparisonsPerSecond(asciiWords, rounds), javaComparisonsPerSecond(asciiWords, rounds)));
+        Log.i(TAG, String.format("Unicode collation of non-ASCII strings: %d/sec native, %d/sec with a Collator per comparison",
+                nativeComparisonsPerSecond(otherWords, rounds), javaComparisonsPerSecond(otherWords, rounds)));
+    }
+
+    public void testCollateUnicodeMatchesCollator() {
+        // Random strings of the characters the native collator compares itself, and of a few it
+        // leaves to the Java collator, must collate as the Java (ICU) collator says, in any locale:
+        String chars = "aAbBcChHzZ019 -\u00e9";
+        Collator collator = Collator.getInstance();
+        Random random = new Random(42);
+        int count = 200000;
+        for (int i = 0; i < count; i++) {
+            String string1 = randomString(random, chars);
+            String string2 = (random.nextInt(3) == 0) ? string1 + randomString(random, chars) : randomString(random, chars);
+            int expected = Integer.signum(collator.compare(string1, string2));
+            Assert.assertEquals("\"" + string1 + "\" vs \"" + string2 + "\"", expected,
+                    TDCollateJSON.testCollateJSON(kTDCollateJSON_Unicode, 0, encode(string1), 0, encode(string2)));
+        }
+    }
+
+    private String randomString(Random random, String chars) {
+        int length = random.nextInt(8);
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            result.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return result.toString();
+    }
+
+    private long nativeComparisonsPerSecond(String[] words, int rounds) {
+        String[] json = new String[words.length];
+        for (int i = 0; i < words.length; i++) {
+            json[i] = encode(words[i]);
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String word1 : json) {
+                for (String word2 : json) {
+                    TDCollateJSON.testCollateJSON(kTDCollateJSON_Unicode, 0, word1, 0, word2);
+                }
+            }
+        }
+        return comparisonsPerSecond(words.length * words.length * rounds, System.nanoTime() - start);
+    }
+
+    private long javaComparisonsPerSecond(String[] words, int rounds) {
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String word1 : words) {
+                for (String word2 : words) {
+                    Collator.getInstance().compare(word1, word2);
+                }
+            }
+        }
+        return comparisonsPerSecond(words.length * words.length * rounds, System.nanoTime() - start);
+    }
+
+    private long comparisonsPerSecond(long count, long nanos) {
+        return count * 1000000000L / Math.max(nanos, 1);
+    }
+
+    public void testRootCollationCheck() throws InterruptedException {
+        // Each thread's collator is the one for the current default locale:
+        final boolean[] isRoot = new boolean[2];
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("da"));    // "aa" sorts after "z"
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    isRoot[0] = TDCollateJSON.isRootCollation();
+                }
+            });
+            thread.start();
+            thread.join();
+            Locale.setDefault(new Locale(""));
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    isRoot[1] = TDCollateJSON.isRootCollation();
+                }
+            });
+            thread.start();
+            thread.join();
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+        Assert.assertFalse(isRoot[0]);
+        Assert.assertTrue(isRoot[1]);
+    }
+
     public void testConvertEscape() {
         Assert.assertEquals('\\', TDCollateJSON.testEscape("\\\\"));
         Assert.assertEquals('\t', TDCollateJSON.testEscape("\\t"));
@@ -1,11 +1,14 @@
 package com.couchbase.touchdb.testapp.tests;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,14 +20,18 @@ import org.codehaus.jackson.map.ObjectMapper;
 import android.test.InstrumentationTestCase;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDBlobStore;
 import com.couchbase.touchdb.TDBody;
 import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDDatabase.TDContentOptions;
+import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDServer;
 import com.couchbase.touchdb.TDStatus;
 import com.couchbase.touchdb.TDView;
 import com.couchbase.touchdb.TDViewMapBlock;
 import com.couchbase.touchdb.TDViewMapEmitBlock;
 import com.couchbase.touchdb.router.TDRouter;
+import com.couchbase.touchdb.router.TDRouterCallbackBlock;
 import com.couchbase.touchdb.router.TDURLConnection;
 import com.couchbase.touchdb.router.TDURLStreamHandlerFactory;
 import com.couchbase.touchdb.support.DirUtils;
@@ -424,6 +431,68 @@ public class Router extends InstrumentationTestCase {
         server.close();
     }
 
+    public void testAcceptsEncoding() {
+        Assert.assertTrue(TDRouter.acceptsEncoding("gzip, deflate", "gzip"));
+        Assert.assertTrue(TDRouter.acceptsEncoding("deflate, GZIP;q=0.5", "gzip"));
+        Assert.assertTrue(TDRouter.acceptsEncoding("*", "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding(null, "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding("identity", "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding("gzip;q=0", "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding("gzip; q=0.0, deflate", "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding("*;q=1, gzip;q=0", "gzip"));
+        Assert.assertFalse(TDRouter.acceptsEncoding("x-gzip", "gzip"));
+    }
+
+    public void testGetAttachmentEncodings() {
+
+        TDServer server = null;
+        try {
+            server = new TDServer(getServerPath());
+        } catch (IOException e) {
+            fail("Creating server caused IOException");
+        }
+
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+        TDDatabase db = server.getDatabaseNamed("db");
+        db.getAttachments().setCompressionEnabled(true);
+
+        Map<String,Object> doc1 = new HashMap<String,Object>();
+        doc1.put("message", "hello");
+        sendBody(server, "PUT", "/db/doc1", doc1, TDStatus.CREATED, null);
+        TDRevision rev = db.getDocumentWithIDAndRev("doc1", null, EnumSet.noneOf(TDContentOptions.class));
+        byte[] text = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 4];
+        Arrays.fill(text, (byte)'x');
+        Assert.assertEquals(TDStatus.CREATED, db.insertAttachmentForSequenceWithNameAndType(text,
+                rev.getSequence(), "text", "text/plain", rev.getGeneration()).getCode());
+
+        // The gzipped attachment is sent as-is only to clients accepting gzip, with its own ETag:
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("Accept-Encoding", "gzip");
+        TDURLConnection conn = sendRequest(server, "GET", "/db/doc1/text", headers, null);
+        Assert.assertEquals(TDStatus.OK, conn.getResponseCode());
+        Assert.assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+        String gzipEtag = conn.getHeaderField("Etag");
+        Assert.assertEquals("\"" + rev.getRevId() + "-gzip\"", gzipEtag);
+
+        conn = sendRequest(server, "GET", "/db/doc1/text", null, null);
+        Assert.assertEquals(TDStatus.OK, conn.getResponseCode());
+        Assert.assertNull(conn.getHeaderField("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+        Assert.assertEquals("\"" + rev.getRevId() + "\"", conn.getHeaderField("Etag"));
+
+        // A conditional GET only matches the ETag of the encoding it would get:
+        headers.put("If-None-Match", gzipEtag);
+        conn = sendRequest(server, "GET", "/db/doc1/text", headers, null);
+        Assert.assertEquals(TDStatus.NOT_MODIFIED, conn.getResponseCode());
+        headers.remove("Accept-Encoding");
+        conn = sendRequest(server, "GET", "/db/doc1/text", headers, null);
+        Assert.assertEquals(TDStatus.OK, conn.getResponseCode());
+        Assert.assertNull(conn.getHeaderField("Content-Encoding"));
+
+        server.close();
+    }
+
     public void testViews() {
 
         TDServer server = null;
@@ -506,6 +575,186 @@ public class Router extends InstrumentationTestCase {
         result = (Map<String,Object>)parseJSONResponse(conn);
         Assert.assertEquals(4, result.get("total_rows"));
 
+        // Query specific keys by POSTing them:
+        Map<String,Object> keysBody = new HashMap<String,Object>();
+        List<Object> keys = new ArrayList<Object>();
+        keys.add("hello");
+        keys.add("bonjour");
+        keysBody.put("keys", keys);
+        expectedRows = new ArrayList<Map<String,Object>>();
+        expectedRows.add(row1);
+        expectedRows.add(row3);
+        expectedResult.put("total_rows", 2);
+        expectedResult.put("rows", expectedRows);
+        sendBody(server, "POST", "/db/_design/design/_view/view", keysBody, TDStatus.OK, expectedResult);
+
+        // A POST without keys is a bad request:
+        sendBody(server, "POST", "/db/_design/design/_view/view", new HashMap<String,Object>(), TDStatus.BAD_REQUEST, null);
+
+        server.close();
+    }
+
+    public void testStreamedViews() throws Exception {
+
+        TDServer server = null;
+        try {
+            server = new TDServer(getServerPath());
+        } catch (IOException e) {
+            fail("Creating server caused IOException");
+        }
+
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+        int numDocs = 500;
+        for (int i = 0; i < numDocs; i++) {
+            Map<String,Object> doc = new HashMap<String,Object>();
+            doc.put("message", String.format("message %03d", i));
+            sendBody(server, "PUT", String.format("/db/doc%03d", i), doc, TDStatus.CREATED, null);
+        }
+
+        TDDatabase db = server.getDatabaseNamed("db");
+        TDView view = db.getViewNamed("design/view");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("message"), null);
+            }
+        }, null, "1");
+
+        URL url = new URL("touchdb:///db/_design/design/_view/view?update_seq=true");
+        final TDURLConnection conn = (TDURLConnection)url.openConnection();
+        conn.setRequestMethod("GET");
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final List<Integer> chunkSizes = new ArrayList<Integer>();
+        final boolean[] finished = { false };
+        TDRouter router = new TDRouter(server, conn);
+        router.setCallbackBlock(new TDRouterCallbackBlock() {
+
+            @Override
+            public void onResponseReady() {
+                Assert.assertTrue(conn.isChunked());
+                Assert.assertEquals(TDStatus.OK, conn.getResponseCode());
+            }
+
+            @Override
+            public void onDataAvailable(byte[] data) {
+                chunkSizes.add(data.length);
+                received.write(data, 0, data.length);
+            }
+
+            @Override
+            public void onFinish() {
+                finished[0] = true;
+            }
+        });
+        router.setStreamViewRows(true);
+        router.start();
+
+        Assert.assertTrue(finished[0]);
+        Assert.assertNull(conn.getResponseBody());
+        // The start of the response was sent before any rows were read, and the rows in pieces:
+        Assert.assertTrue(chunkSizes.size() > 2);
+        Assert.assertTrue(chunkSizes.get(0) < 20);
+
+        Map<String,Object> result = (Map<String,Object>)new ObjectMapper().readValue(received.toByteArray(), Object.class);
+        Assert.assertEquals(numDocs, result.get("total_rows"));
+        Assert.assertEquals(0, result.get("offset"));
+        Assert.assertEquals(numDocs, ((Number)result.get("update_seq")).intValue());
+        List<Map<String,Object>> rows = (List<Map<String,Object>>)result.get("rows");
+        Assert.assertEquals(numDocs, rows.size());
+        Assert.assertEquals("doc000", rows.get(0).get("id"));
+        Assert.assertEquals("message 000", rows.get(0).get("key"));
+        Assert.assertEquals("doc499", rows.get(numDocs - 1).get("id"));
+
+        // A client that goes away is still told the response is finished, just once, and the
+        // response isn't checked against the Accept header after it's been sent:
+        final TDURLConnection conn2 = (TDURLConnection)url.openConnection();
+        conn2.setRequestMethod("GET");
+        conn2.setRequestProperty("Accept", "text/plain");
+        final int[] calls = { 0, 0, 0 };   // onResponseReady, onDataAvailable, onFinish
+        final TDRouter router2 = new TDRouter(server, conn2);
+        router2.setCallbackBlock(new TDRouterCallbackBlock() {
+
+            @Override
+            public void onResponseReady() {
+                calls[0]++;
+            }
+
+            @Override
+            public void onDataAvailable(byte[] data) {
+                calls[1]++;
+                router2.stop();
+            }
+
+            @Override
+            public void onFinish() {
+                calls[2]++;
+            }
+        });
+        router2.setStreamViewRows(true);
+        router2.start();
+        Assert.assertEquals(1, calls[0]);
+        Assert.assertEquals(1, calls[1]);
+        Assert.assertEquals(1, calls[2]);
+        Assert.assertEquals(TDStatus.OK, conn2.getResponseCode());
+
+        server.close();
+    }
+
+    public void testStaleViews() throws InterruptedException {
+
+        TDServer server = null;
+        try {
+            server = new TDServer(getServerPath());
+        } catch (IOException e) {
+            fail("Creating server caused IOException");
+        }
+
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+        Map<String,Object> doc1 = new HashMap<String,Object>();
+        doc1.put("message", "hello");
+        sendBody(server, "PUT", "/db/doc1", doc1, TDStatus.CREATED, null);
+
+        TDDatabase db = server.getDatabaseNamed("db");
+        TDView view = db.getViewNamed("design/view");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("message"), null);
+            }
+        }, null, "1");
+
+        // stale=ok doesn't index first:
+        Map<String,Object> result = (Map<String,Object>)send(server, "GET", "/db/_design/design/_view/view?stale=ok", TDStatus.OK, null);
+        Assert.assertEquals(0, result.get("total_rows"));
+        Assert.assertTrue(view.isStale());
+
+        send(server, "GET", "/db/_design/design/_view/view?stale=bogus", TDStatus.BAD_REQUEST, null);
+
+        // stale=update_after answers from the old index, then indexes:
+        result = (Map<String,Object>)send(server, "GET", "/db/_design/design/_view/view?stale=update_after", TDStatus.OK, null);
+        Assert.assertEquals(0, result.get("total_rows"));
+        for (int i = 0; i < 100 && view.isStale(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(view.isStale());
+        result = (Map<String,Object>)send(server, "GET", "/db/_design/design/_view/view?stale=ok", TDStatus.OK, null);
+        Assert.assertEquals(1, result.get("total_rows"));
+
+        // ...even when the client already has the old index's rows:
+        Map<String,Object> doc2 = new HashMap<String,Object>();
+        doc2.put("message", "goodbye");
+        sendBody(server, "PUT", "/db/doc2", doc2, TDStatus.CREATED, null);
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("If-None-Match", String.format("\"%d\"", view.getLastSequenceIndexed()));
+        TDURLConnection conn = sendRequest(server, "GET", "/db/_design/design/_view/view?stale=update_after", headers, null);
+        Assert.assertEquals(TDStatus.NOT_MODIFIED, conn.getResponseCode());
+        for (int i = 0; i < 100 && view.isStale(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(view.isStale());
+
         server.close();
     }
 
@@ -8,6 +8,8 @@ import java.util.List;
 import junit.framework.Assert;
 import android.test.AndroidTestCase;
 
+import com.couchbase.touchdb.TDBlobKey;
+import com.couchbase.touchdb.TDBlobStore;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDServer;
 import com.couchbase.touchdb.support.DirUtils;
@@ -70,4 +72,43 @@ public class Server extends AndroidTestCase {
 
     }
 
+    public void testSharedAttachmentStore() throws IOException {
+
+        TDServer server = new TDServer(getServerPath());
+        server.enableSharedAttachmentStore();
+        server.getSharedAttachmentStore().setSyncDeferred(true);
+        server.getSharedAttachmentStore().setMappingThreshold(TDBlobStore.DEFAULT_MAPPING_THRESHOLD * 2);
+
+        TDDatabase db1 = server.getDatabaseNamed("db1");
+        TDDatabase db2 = server.getDatabaseNamed("db2");
+        Assert.assertTrue(db1.open());
+        Assert.assertTrue(db2.open());
+        Assert.assertTrue(db1.getAttachments().isShared());
+
+        // The databases' views of the shared store have its settings:
+        Assert.assertTrue(db1.getAttachments().isSyncDeferred());
+        Assert.assertEquals(TDBlobStore.DEFAULT_MAPPING_THRESHOLD * 2, db1.getAttachments().getMappingThreshold());
+
+        byte[] data = new byte[TDBlobStore.DEFAULT_INLINE_THRESHOLD * 2];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        TDBlobKey key1 = new TDBlobKey();
+        TDBlobKey key2 = new TDBlobKey();
+        Assert.assertTrue(db1.getAttachments().storeBlob(data, key1));
+        Assert.assertTrue(db2.getAttachments().storeBlob(data, key2));
+        Assert.assertEquals(key1, key2);
+        Assert.assertEquals(1, server.getSharedAttachmentStore().count());
+
+        // Compacting db1 drops its reference, but db2 still has one:
+        Assert.assertTrue(db1.compact().isSuccessful());
+        Assert.assertNotNull(db2.getAttachments().blobForKey(key2));
+
+        Assert.assertTrue(server.deleteDatabaseNamed("db2"));
+        Assert.assertNull(server.getSharedAttachmentStore().blobForKey(key1));
+        Assert.assertEquals(0, server.getSharedAttachmentStore().count());
+
+        server.close();
+    }
+
 }
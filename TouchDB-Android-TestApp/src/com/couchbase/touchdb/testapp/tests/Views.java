@@ -18,21 +18,26 @@
 package com.couchbase.touchdb.testapp.tests;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import junit.framework.Assert;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDBuiltinReduceBlock;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDQueryOptions;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.TDThreadSafeViewMapBlock;
 import com.couchbase.touchdb.TDView;
 import com.couchbase.touchdb.TDView.TDViewCollation;
 import com.couchbase.touchdb.TDViewMapBlock;
+import com.couchbase.touchdb.TDViewIndexer;
 import com.couchbase.touchdb.TDViewMapEmitBlock;
 import com.couchbase.touchdb.TDViewReduceBlock;
 
@@ -333,21 +338,38 @@ public class Views extends AndroidTestCase {
 
         Assert.assertEquals(expectedRows, rows);
 
-        // Specific keys:
+        // Specific keys, returned in the order given, repeated keys included:
         options = new TDQueryOptions();
         List<Object> keys = new ArrayList<Object>();
         keys.add("two");
         keys.add("four");
+        keys.add("two");
         options.setKeys(keys);
 
         rows = view.queryWithOptions(options, status);
 
         expectedRows = new ArrayList<Object>();
+        expectedRows.add(dict2);
         expectedRows.add(dict4);
         expectedRows.add(dict2);
 
         Assert.assertEquals(expectedRows, rows);
 
+        // More keys than SQLite allows bound parameters in a statement:
+        keys = new ArrayList<Object>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add("missing" + i);
+        }
+        keys.add("four");
+        options.setKeys(keys);
+
+        rows = view.queryWithOptions(options, status);
+
+        expectedRows = new ArrayList<Object>();
+        expectedRows.add(dict4);
+
+        Assert.assertEquals(expectedRows, rows);
+
         db.close();
     }
 
@@ -509,6 +531,60 @@ public class Views extends AndroidTestCase {
         db.close();
     }
 
+    public void testViewReduceNullKeys() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        Map<String,Object> docProperties1 = new HashMap<String,Object>();
+        docProperties1.put("_id", "CD");
+        docProperties1.put("cost", 8.99);
+        putDoc(db, docProperties1);
+
+        Map<String,Object> docProperties2 = new HashMap<String,Object>();
+        docProperties2.put("_id", "App");
+        docProperties2.put("cost", 1.95);
+        putDoc(db, docProperties2);
+
+        TDView view = db.getViewNamed("totaler");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(null, document.get("cost"));
+            }
+        }, new TDViewReduceBlock() {
+
+            @Override
+            public Object reduce(List<Object> keys, List<Object> values,
+                    boolean rereduce) {
+                return TDView.totalValues(values);
+            }
+        }, "1");
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        TDQueryOptions options = new TDQueryOptions();
+        options.setReduce(true);
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, reduced.size());
+        Assert.assertTrue(Math.abs(((Number)reduced.get(0).get("value")).doubleValue() - 10.94) < 0.001);
+
+        // Grouped, the null keys make one group:
+        options.setGroup(true);
+        reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, reduced.size());
+        Assert.assertTrue(reduced.get(0).containsKey("key"));
+        Assert.assertNull(reduced.get(0).get("key"));
+        Assert.assertTrue(Math.abs(((Number)reduced.get(0).get("value")).doubleValue() - 10.94) < 0.001);
+
+        db.close();
+    }
+
     public void testViewGrouped() {
 
         String filesDir = getContext().getFilesDir().getAbsolutePath();
@@ -958,4 +1034,644 @@ public class Views extends AndroidTestCase {
         db.close();
     }
 
+    public void testViewCollationChange() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        String[] keys = { "a", "B", "c" };
+        for (String key : keys) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("key", key);
+            putDoc(db, props);
+        }
+
+        TDView view = db.getViewNamed("default/names");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+            }
+        }, null, "1");
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        TDQueryOptions options = new TDQueryOptions();
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> rows = view.queryWithOptions(options, status);
+        Assert.assertEquals("a", rows.get(0).get("key"));
+        Assert.assertEquals("B", rows.get(1).get("key"));
+        Assert.assertEquals("c", rows.get(2).get("key"));
+
+        // The index was built in Unicode collation, so changing it makes the index stale:
+        view.setCollation(TDViewCollation.TDViewCollationASCII);
+        Assert.assertTrue(view.isStale());
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        rows = view.queryWithOptions(options, status);
+        Assert.assertEquals("B", rows.get(0).get("key"));
+        Assert.assertEquals("a", rows.get(1).get("key"));
+        Assert.assertEquals("c", rows.get(2).get("key"));
+
+        // Setting the same collation again leaves the index alone:
+        view.setCollation(TDViewCollation.TDViewCollationASCII);
+        Assert.assertFalse(view.isStale());
+
+        db.close();
+    }
+
+    public void testViewCollationLocaleChange() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        String[] keys = { "aa", "b", "z" };
+        for (String key : keys) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("key", key);
+            putDoc(db, props);
+        }
+
+        TDView view = db.getViewNamed("default/names");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+            }
+        }, null, "1");
+
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale(""));
+            Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+            TDQueryOptions options = new TDQueryOptions();
+            TDStatus status = new TDStatus();
+            List<Map<String, Object>> rows = view.queryWithOptions(options, status);
+            Assert.assertEquals("aa", rows.get(0).get("key"));
+            Assert.assertEquals("b", rows.get(1).get("key"));
+            Assert.assertEquals("z", rows.get(2).get("key"));
+            Assert.assertEquals(TDStatus.NOT_MODIFIED, view.updateIndex().getCode());
+
+            // The sort keys were made for the root locale, so changing the locale rebuilds the index:
+            Locale.setDefault(new Locale("da"));    // "aa" sorts after "z"
+            Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+            rows = view.queryWithOptions(options, status);
+            Assert.assertEquals(3, rows.size());
+            Assert.assertEquals("b", rows.get(0).get("key"));
+            Assert.assertEquals("z", rows.get(1).get("key"));
+            Assert.assertEquals("aa", rows.get(2).get("key"));
+
+            options.setStartKey("z");
+            rows = view.queryWithOptions(options, status);
+            Assert.assertEquals(2, rows.size());
+            Assert.assertEquals("z", rows.get(0).get("key"));
+            Assert.assertEquals("aa", rows.get(1).get("key"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+
+        db.close();
+    }
+
+    public void testKeysetPagination() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        // Many docs with the same key, so that pages have to split rows with equal keys:
+        for (int i = 0; i < 20; i++) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("_id", String.format("doc%02d", i));
+            props.put("key", i % 3);
+            putDoc(db, props);
+        }
+
+        TDView view = db.getViewNamed("default/keys");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+            }
+        }, null, "1");
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        for (boolean descending : new boolean[] { false, true }) {
+            TDQueryOptions options = new TDQueryOptions();
+            options.setDescending(descending);
+            TDStatus status = new TDStatus();
+            List<Map<String, Object>> allRows = view.queryWithOptions(options, status);
+            Assert.assertEquals(20, allRows.size());
+
+            // Page through, starting each page at the last row of the previous one:
+            List<Map<String, Object>> pagedRows = new ArrayList<Map<String, Object>>();
+            options.setLimit(4);
+            while (true) {
+                List<Map<String, Object>> page = view.queryWithOptions(options, status);
+                pagedRows.addAll(page);
+                if (page.size() < options.getLimit()) {
+                    break;
+                }
+                Map<String, Object> last = page.get(page.size() - 1);
+                options.setStartKey(last.get("key"));
+                options.setStartKeyDocId((String)last.get("id"));
+                options.setSkip(1);
+            }
+            Assert.assertEquals(allRows, pagedRows);
+        }
+
+        // endkey_docid stops within the rows of the end key:
+        TDQueryOptions options = new TDQueryOptions();
+        options.setEndKey(0);
+        options.setEndKeyDocId("doc06");
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(3, rows.size());
+        Assert.assertEquals("doc06", rows.get(2).get("id"));
+        options.setInclusiveEnd(false);
+        rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals("doc03", rows.get(1).get("id"));
+
+        db.close();
+    }
+
+    public void testViewIndexBatches() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        // Enough documents that the emitted rows are inserted in several batches:
+        int numDocs = TDView.MAP_BATCH_SIZE * 5 + 50;
+        for(int i = 0; i < numDocs; i++) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("_id", String.format("%05d", i));
+            props.put("key", i);
+            putDoc(db, props);
+        }
+
+        TDView view = db.getViewNamed("aview");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+                emitter.emit(document.get("_id"), document.get("key"));
+            }
+        }, null, "1");
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        List<Map<String,Object>> dump = view.dump();
+        Assert.assertEquals(2 * numDocs, dump.size());
+
+        db.close();
+    }
+
+    public void testParallelViewIndex() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        int numDocs = TDView.MAP_BATCH_SIZE * 10 + 7;
+        for(int i = 0; i < numDocs; i++) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("_id", String.format("%05d", i));
+            props.put("key", i);
+            putDoc(db, props);
+        }
+
+        TDView view = db.getViewNamed("aview");
+        view.setMapReduceBlocks(new TDThreadSafeViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), document.get("key"));
+            }
+        }, null, "1");
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        List<Map<String,Object>> dump = view.dump();
+        Assert.assertEquals(numDocs, dump.size());
+        for(int i = 0; i < numDocs; i++) {
+            Assert.assertEquals("\"" + String.format("%05d", i) + "\"", dump.get(i).get("key"));
+            Assert.assertEquals(Integer.toString(i), dump.get(i).get("value"));
+        }
+
+        // Incremental update after changing a document:
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put("_id", "99999");
+        props.put("key", 99999);
+        putDoc(db, props);
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        Assert.assertEquals(numDocs + 1, view.dump().size());
+
+        db.close();
+    }
+
+    public void testGroupedViewIndex() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        putDocs(db);
+
+        TDView viewA = db.getViewNamed("design/a");
+        viewA.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+            }
+        }, null, "1");
+        TDView viewB = db.getViewNamed("design/b");
+        viewB.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), null);
+            }
+        }, null, "1");
+        TDView other = db.getViewNamed("other/c");
+        other.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), null);
+            }
+        }, null, "1");
+
+        Assert.assertEquals(2, viewA.getViewsInGroup().size());
+
+        // Updating one view of the design doc updates its sibling too, but not other views:
+        Assert.assertEquals(TDStatus.OK, viewA.updateIndex().getCode());
+        Assert.assertFalse(viewB.isStale());
+        Assert.assertTrue(other.isStale());
+        Assert.assertEquals(TDStatus.NOT_MODIFIED, viewB.updateIndex().getCode());
+        int numRows = viewA.dump().size();
+        Assert.assertEquals(numRows, viewB.dump().size());
+
+        // Views at different sequences are each only given the documents they haven't seen:
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put("_id", "66666");
+        props.put("key", "six");
+        putDoc(db, props);
+        Assert.assertEquals(TDStatus.OK, TDView.updateIndexes(Collections.singletonList(viewA)).getCode());
+        props = new HashMap<String,Object>();
+        props.put("_id", "77777");
+        props.put("key", "seven");
+        putDoc(db, props);
+        List<TDView> group = new ArrayList<TDView>();
+        group.add(viewA);
+        group.add(viewB);
+        Assert.assertEquals(TDStatus.OK, TDView.updateIndexes(group).getCode());
+        Assert.assertEquals(numRows + 2, viewA.dump().size());
+        Assert.assertEquals(numRows + 2, viewB.dump().size());
+
+        db.close();
+    }
+
+    public void testGroupedViewsGetOwnDocuments() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        putDocs(db);
+
+        // Each map block removes what the other one emits, which it mustn't see:
+        TDView viewA = db.getViewNamed("design/a");
+        viewA.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), null);
+                document.remove("_id");
+            }
+        }, null, "1");
+        TDView viewB = db.getViewNamed("design/b");
+        viewB.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), null);
+                document.remove("key");
+            }
+        }, null, "1");
+
+        Assert.assertEquals(TDStatus.OK, viewA.updateIndex().getCode());
+        for (Map<String,Object> row : viewA.dump()) {
+            Assert.assertFalse("null".equals(row.get("key")));
+        }
+        for (Map<String,Object> row : viewB.dump()) {
+            Assert.assertFalse("null".equals(row.get("key")));
+        }
+
+        db.close();
+    }
+
+    public void testIncrementalReduce() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        Map<String,Object> docProperties1 = new HashMap<String,Object>();
+        docProperties1.put("_id", "CD");
+        docProperties1.put("cost", 8.99);
+        TDRevision rev1 = putDoc(db, docProperties1);
+
+        Map<String,Object> docProperties2 = new HashMap<String,Object>();
+        docProperties2.put("_id", "App");
+        docProperties2.put("cost", 1.95);
+        TDRevision rev2 = putDoc(db, docProperties2);
+
+        TDView view = db.getViewNamed("totaler");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                Object cost = document.get("cost");
+                if(cost != null) {
+                    emitter.emit(document.get("_id"), cost);
+                }
+            }
+        }, new TDViewReduceBlock() {
+
+            @Override
+            public Object reduce(List<Object> keys, List<Object> values,
+                    boolean rereduce) {
+                return TDView.totalValues(values);
+            }
+        }, "1");
+        view.setIncrementalReduce(true);
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        TDQueryOptions options = new TDQueryOptions();
+        options.setReduce(true);
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, reduced.size());
+        Assert.assertEquals(10.94, (Double)reduced.get(0).get("value"), 0.001);
+
+        // The partial reduction is reused, then invalidated by updating the index:
+        reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(10.94, (Double)reduced.get(0).get("value"), 0.001);
+
+        TDRevision updated = new TDRevision(rev1.getDocId(), rev1.getRevId(), false);
+        Map<String,Object> newProperties1 = new HashMap<String,Object>();
+        newProperties1.put("cost", 9.99);
+        updated.setProperties(newProperties1);
+        db.putRevision(updated, rev1.getRevId(), false, status);
+        Assert.assertTrue(status.isSuccessful());
+        TDRevision deleted = new TDRevision(rev2.getDocId(), rev2.getRevId(), true);
+        db.putRevision(deleted, rev2.getRevId(), false, status);
+        Assert.assertTrue(status.isSuccessful());
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, reduced.size());
+        Assert.assertEquals(9.99, (Double)reduced.get(0).get("value"), 0.001);
+
+        db.close();
+    }
+
+    public void testChunkedReduce() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+
+        int numDocs = 5 * TDView.REDUCE_BATCH_SIZE / 2;
+        for (int i = 0; i < numDocs; i++) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("group", i % 2);
+            putDoc(db, props);
+        }
+
+        final int[] largestReduce = { 0 };
+        final boolean[] rereduced = { false };
+        TDView view = db.getViewNamed("counter");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("group"), null);
+            }
+        }, new TDViewReduceBlock() {
+
+            @Override
+            public Object reduce(List<Object> keys, List<Object> values,
+                    boolean rereduce) {
+                largestReduce[0] = Math.max(largestReduce[0], values.size());
+                if(rereduce) {
+                    rereduced[0] = true;
+                    return TDView.totalValues(values);
+                }
+                return values.size();
+            }
+        }, "1");
+
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        TDQueryOptions options = new TDQueryOptions();
+        options.setReduce(true);
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, reduced.size());
+        Assert.assertEquals(numDocs, ((Number)reduced.get(0).get("value")).intValue());
+        Assert.assertTrue(rereduced[0]);
+        Assert.assertTrue(largestReduce[0] <= TDView.REDUCE_BATCH_SIZE);
+
+        options.setGroup(true);
+        reduced = view.queryWithOptions(options, status);
+        Assert.assertEquals(2, reduced.size());
+        Assert.assertEquals(numDocs / 2, ((Number)reduced.get(0).get("value")).intValue());
+        Assert.assertEquals(numDocs - numDocs / 2, ((Number)reduced.get(1).get("value")).intValue());
+
+        db.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBuiltinReduce() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        for (int i = 0; i < 10; i++) {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("i", i);
+            putDoc(db, props);
+        }
+
+        TDViewMapBlock mapBlock = new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                int i = (Integer)document.get("i");
+                emitter.emit(i % 2, i);
+            }
+        };
+        Assert.assertEquals(TDBuiltinReduceBlock.TDBuiltinReduceSum, TDBuiltinReduceBlock.forName(" _sum "));
+        Assert.assertNull(TDBuiltinReduceBlock.forName("function(keys, values) { return sum(values); }"));
+
+        TDView view = db.getViewNamed("default/numbers");
+        view.setMapReduceBlocks(mapBlock, TDBuiltinReduceBlock.TDBuiltinReduceSum, "1");
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        TDQueryOptions options = new TDQueryOptions();
+        options.setReduce(true);
+        TDStatus status = new TDStatus();
+        List<Map<String, Object>> rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals(45L, rows.get(0).get("value"));
+
+        options.setGroup(true);
+        rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals(0, rows.get(0).get("key"));
+        Assert.assertEquals(20L, rows.get(0).get("value"));
+        Assert.assertEquals(1, rows.get(1).get("key"));
+        Assert.assertEquals(25L, rows.get(1).get("value"));
+
+        view.setMapReduceBlocks(mapBlock, TDBuiltinReduceBlock.TDBuiltinReduceCount, "1");
+        options.setDescending(true);
+        rows = view.queryWithOptions(options, status);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals(1, rows.get(0).get("key"));
+        Assert.assertEquals(5L, rows.get(0).get("value"));
+
+        view.setMapReduceBlocks(mapBlock, TDBuiltinReduceBlock.TDBuiltinReduceStats, "1");
+        options = new TDQueryOptions();
+        options.setReduce(true);
+        rows = view.queryWithOptions(options, status);
+        Map<String,Object> stats = (Map<String,Object>)rows.get(0).get("value");
+        Assert.assertEquals(45L, stats.get("sum"));
+        Assert.assertEquals(10L, stats.get("count"));
+        Assert.assertEquals(0L, stats.get("min"));
+        Assert.assertEquals(9L, stats.get("max"));
+        Assert.assertEquals(285L, stats.get("sumsqr"));
+
+        // Reducing in Java gives the same result:
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 10; i++) {
+            values.add(i);
+        }
+        Assert.assertEquals(stats, TDBuiltinReduceBlock.TDBuiltinReduceStats.reduce(null, values, false));
+
+        // Values that aren't numbers are reduced in Java:
+        TDView arrayView = db.getViewNamed("default/arrays");
+        arrayView.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                int i = (Integer)document.get("i");
+                List<Object> key = new ArrayList<Object>();
+                key.add(i % 2);
+                key.add(i);
+                List<Object> value = new ArrayList<Object>();
+                value.add(i);
+                value.add(1);
+                emitter.emit(key, value);
+            }
+        }, TDBuiltinReduceBlock.TDBuiltinReduceSum, "1");
+        Assert.assertEquals(TDStatus.OK, arrayView.updateIndex().getCode());
+        rows = arrayView.queryWithOptions(options, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        List<Object> expected = new ArrayList<Object>();
+        expected.add(45L);
+        expected.add(10L);
+        Assert.assertEquals(expected, rows.get(0).get("value"));
+
+        // As are groups of partial keys:
+        options.setGroupLevel(1);
+        rows = arrayView.queryWithOptions(options, status);
+        Assert.assertEquals(2, rows.size());
+        expected = new ArrayList<Object>();
+        expected.add(25L);
+        expected.add(5L);
+        Assert.assertEquals(expected, rows.get(1).get("value"));
+
+        db.close();
+    }
+
+    public void testBackgroundIndexing() throws InterruptedException {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(filesDir + "/touch_couch_test.sqlite3");
+        List<TDRevision> docs = putDocs(db);
+
+        TDView view = createView(db);
+
+        // Indexing a limited number of sequences at a time:
+        Assert.assertEquals(TDStatus.OK, TDView.updateIndexes(view.getViewsInGroup(), 2).getCode());
+        Assert.assertEquals(2, view.getLastSequenceIndexed());
+        Assert.assertEquals(docs.size() - 2, view.getIndexLag());
+
+        TDViewIndexer indexer = view.startBackgroundIndexing();
+        indexer.setDebounceDelay(50);
+        for (int i = 0; i < 100 && view.getIndexLag() > 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, indexer.getLag());
+
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put("_id", "66666");
+        props.put("key", "six");
+        putDoc(db, props);
+        for (int i = 0; i < 100 && view.getIndexLag() > 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, indexer.getLag());
+        Assert.assertEquals(TDStatus.NOT_MODIFIED, view.updateIndex().getCode());
+
+        view.stopBackgroundIndexing();
+        Assert.assertNull(view.getBackgroundIndexer());
+
+        // Closing the database waits for an indexer that's busy to finish its batch:
+        indexer = view.startBackgroundIndexing();
+        props = new HashMap<String,Object>();
+        props.put("_id", "77777");
+        props.put("key", "seven");
+        putDoc(db, props);
+        indexer.scheduleUpdate();
+        Assert.assertTrue(db.close());
+        Assert.assertFalse(indexer.isIndexing());
+    }
+
+    public void testScheduledIndexUpdateOnClose() {
+
+        String filesDir = getContext().getFilesDir().getAbsolutePath();
+        String path = filesDir + "/touch_couch_test.sqlite3";
+
+        TDDatabase db = TDDatabase.createEmptyDBAtPath(path);
+        List<TDRevision> docs = putDocs(db);
+        TDView view = createView(db);
+
+        // Closing the database cancels a scheduled update, or waits for it to finish:
+        view.scheduleIndexUpdate();
+        Assert.assertTrue(db.close());
+        Assert.assertNull(view.getDb());
+
+        // ...leaving no transaction open, and the index either updated or untouched:
+        db = new TDDatabase(path);
+        Assert.assertTrue(db.open());
+        view = createView(db);
+        long lastSequence = view.getLastSequenceIndexed();
+        Assert.assertTrue(lastSequence == 0 || lastSequence == docs.size());
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put("_id", "66666");
+        props.put("key", "six");
+        putDoc(db, props);
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        Assert.assertEquals(docs.size() + 1, view.getLastSequenceIndexed());
+        Assert.assertTrue(db.close());
+    }
+
 }
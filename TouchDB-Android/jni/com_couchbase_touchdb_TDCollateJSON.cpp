@@ -28,6 +28,11 @@
 JavaVM *cached_jvm;
 jclass TDCollateJSONClass;
 jmethodID compareMethod;
+jmethodID isRootCollationMethod;
+
+static void initPrimaryWeights();
+static bool useFastCollation = false;
+
 JNIEXPORT jint JNICALL
 JNI_OnLoad(JavaVM *jvm, void *reserved)
 {
@@ -52,6 +57,13 @@ JNI_OnLoad(JavaVM *jvm, void *reserved)
 	if (compareMethod == NULL) {
 		return JNI_ERR;
 	}
+	isRootCollationMethod = env->GetStaticMethodID(cls, "isRootCollation", "()Z");
+	if (isRootCollationMethod == NULL) {
+		return JNI_ERR;
+	}
+
+	initPrimaryWeights();
+	useFastCollation = env->CallStaticBooleanMethod(cls, isRootCollationMethod);
 
 	return JNI_VERSION_1_2;
 }
@@ -253,12 +265,85 @@ static jstring createJavaStringFromJSON(const char** in) {
 	return result;
 }
 
+/**
+ * Unicode collation of the common ASCII characters, so that strings made only of those can be
+ * compared without calling into Java. In the default (root) collation, spaces sort before digits,
+ * which sort before letters, and letters differ only in case at the tertiary level, where
+ * lowercase sorts first. Characters outside this set have a weight of 0 and aren't handled here.
+ * Java collates in the default locale, which may tailor even this order, so these are only used
+ * if TDCollateJSON.isRootCollation() says the locale doesn't (see useFastCollation).
+ */
+static unsigned char kPrimaryWeight[128];
+
+static void initPrimaryWeights() {
+	unsigned char weight = 1;
+	kPrimaryWeight[' '] = weight++;
+	for (int c = '0'; c <= '9'; ++c)
+		kPrimaryWeight[c] = weight++;
+	for (int c = 'a'; c <= 'z'; ++c) {
+		kPrimaryWeight[c] = weight;
+		kPrimaryWeight[c - 'a' + 'A'] = weight++;
+	}
+}
+
+static inline int primaryWeight(char c) {
+	unsigned char uc = (unsigned char) c;
+	return uc < 128 ? kPrimaryWeight[uc] : 0;
+}
+
+/**
+ * Compares two JSON strings in Unicode collation if both consist only of characters with a
+ * primary weight (and no escapes). Returns false, without moving the input positions, if it
+ * can't tell; otherwise stores the result in *result.
+ */
+static bool compareStringsUnicodeFast(const char** in1, const char** in2, int* result) {
+	const char* str1 = *in1, *str2 = *in2;
+	int tertiary = 0;
+	while (true) {
+		char c1 = *++str1;
+		char c2 = *++str2;
+
+		// If one string ends, the other is greater; if both end, they differ at most in case:
+		if (c1 == '"' || c2 == '"') {
+			if (c1 == '"' && c2 == '"') {
+				*result = tertiary;
+				*in1 = str1 + 1;
+				*in2 = str2 + 1;
+				return true;
+			}
+			char rest = (c1 == '"') ? c2 : c1;
+			if (!primaryWeight(rest))
+				return false; // might be ignorable
+			*result = (c1 == '"') ? -1 : 1;
+			return true;
+		}
+
+		int w1 = primaryWeight(c1);
+		int w2 = primaryWeight(c2);
+		if (!w1 || !w2)
+			return false;
+		if (w1 != w2) {
+			*result = cmp(w1, w2);
+			return true;
+		}
+		if (!tertiary)
+			tertiary = cmp(isupper(c1) != 0, isupper(c2) != 0);
+	}
+}
+
 static int compareStringsUnicode(const char** in1, const char** in2) {
+	int result;
+	if (useFastCollation && compareStringsUnicodeFast(in1, in2, &result))
+		return result;
+
+	JNIEnv *env = getEnv();
 	jstring str1 = createJavaStringFromJSON(in1);
 	jstring str2 = createJavaStringFromJSON(in2);
-	JNIEnv *env = getEnv();
-	int result = env->CallStaticIntMethod(TDCollateJSONClass, compareMethod,
+	result = env->CallStaticIntMethod(TDCollateJSONClass, compareMethod,
 			str1, str2);
+	// This may run many times within one call from Java, so don't let local refs pile up:
+	env->DeleteLocalRef(str1);
+	env->DeleteLocalRef(str2);
 	return result;
 }
 
@@ -367,6 +452,9 @@ JNIEXPORT void JNICALL Java_com_couchbase_touchdb_TDCollateJSON_nativeRegisterCu
 		return;
 	}
 
+	// the default locale may have changed since the library was loaded
+	useFastCollation = env->CallStaticBooleanMethod(TDCollateJSONClass, isRootCollationMethod);
+
 	// get the native handle
 	sqlite3 * sqliteHandle = (sqlite3 *)env->GetIntField(sqliteDatabase, offset_db_handle);
 	LOGV("SQLite3 handle is %d", sqliteHandle);
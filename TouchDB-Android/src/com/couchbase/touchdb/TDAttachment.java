@@ -19,8 +19,16 @@ package com.couchbase.touchdb;
 
 public class TDAttachment {
 
+    /**
+     * How an attachment's data is encoded in storage (and optionally on the wire)
+     */
+    public enum TDAttachmentEncoding {
+        TDAttachmentEncodingNone, TDAttachmentEncodingGZIP
+    }
+
     private byte[] data;
     private String contentType;
+    private TDAttachmentEncoding encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
 
     public TDAttachment() {
 
@@ -47,4 +55,15 @@ public class TDAttachment {
         this.contentType = contentType;
     }
 
+    /**
+     * The encoding of the data returned by getData(); GZIP means it has not been decompressed.
+     */
+    public TDAttachmentEncoding getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(TDAttachmentEncoding encoding) {
+        this.encoding = encoding;
+    }
+
 }
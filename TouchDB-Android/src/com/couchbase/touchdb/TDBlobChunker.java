@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks. A boundary is placed wherever a rolling "gear"
+ * hash of the preceding bytes matches a bit pattern, so an edit only changes the chunks around
+ * it; the boundaries, and so the chunks, elsewhere in the data stay the same.
+ */
+public class TDBlobChunker {
+
+    public static final int MIN_CHUNK_SIZE = 2 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    // 13 bits must be zero, giving an average chunk size of about 8k. The high bits of the hash
+    // depend on the last 32 bytes, the low ones on only the last few.
+    private static final int BOUNDARY_MASK = 0xFFF80000;
+
+    // Changing these (or the constants above) would change every chunk boundary and defeat
+    // sharing with already-stored chunks, so they're generated from a fixed seed.
+    private static final int[] GEAR = new int[256];
+
+    static {
+        long seed = 0x5DEECE66DL;
+        for(int i = 0; i < GEAR.length; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            GEAR[i] = (int)(seed >>> 32);
+        }
+    }
+
+    private InputStream in;
+    private byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+    public TDBlobChunker(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    /**
+     * Returns the next chunk of the stream, or null at the end of it.
+     */
+    public byte[] nextChunk() throws IOException {
+        int length = 0;
+        int hash = 0;
+        int b;
+        while(length < MAX_CHUNK_SIZE && (b = in.read()) >= 0) {
+            buffer[length++] = (byte)b;
+            hash = (hash << 1) + GEAR[b];
+            if(length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                break;
+            }
+        }
+        if(length == 0) {
+            return null;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+}
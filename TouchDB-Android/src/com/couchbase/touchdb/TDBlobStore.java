@@ -17,29 +17,111 @@
 
 package com.couchbase.touchdb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
+import com.couchbase.touchdb.support.GzipUtils;
+
 /**
  * A persistent content-addressable store for arbitrary-size data blobs.
- * Each blob is stored as a file named by its SHA-1 digest.
+ * Each blob is stored as a file named by its SHA-1 digest, except that blobs smaller
+ * than the inline threshold are stored in the database's "blobs" table instead.
+ * If compression is enabled, blobs of compressible content types are gzipped before being
+ * stored; they are still keyed by the digest of their uncompressed contents.
+ * If chunking is enabled, large blobs are split into content-defined chunks that are stored as
+ * blobs in their own right, plus a manifest in the "blob_chunks" table listing them in order,
+ * so that versions of a blob that differ only in places share most of their storage.
+ * Blob files are written to a temporary file and renamed into place once complete, so a
+ * crash can't leave a truncated file under a valid key.
+ * A TDServer can also keep a single shared store for all its databases (see openSharedStore);
+ * each database then uses a view of it from storeForDatabase, and the store counts which
+ * databases reference each blob, so an attachment present in several databases is stored once.
  */
 public class TDBlobStore {
 
     public static String FILE_EXTENSION = ".blob";
+    public static String GZIP_FILE_EXTENSION = ".gz";
+    public static String TEMP_FILE_EXTENSION = ".blobtmp";
+
+    /**
+     * Default size (in bytes) below which blobs are stored in the database instead of in files.
+     */
+    public static final int DEFAULT_INLINE_THRESHOLD = 4096;
+
+    /**
+     * Size (in bytes) from which blobs are stored in chunks, if chunking is enabled.
+     */
+    public static final int CHUNKING_THRESHOLD = 2 * TDBlobChunker.MAX_CHUNK_SIZE;
+
+    /**
+     * Default size (in bytes) from which blobBufferForKey memory-maps blob files.
+     */
+    public static final int DEFAULT_MAPPING_THRESHOLD = 64 * 1024;
+
+    /**
+     * Maximum number of memory mappings kept open for reuse.
+     */
+    public static final int MAX_CACHED_MAPPINGS = 8;
+
+    /**
+     * Age (in milliseconds) from which a temp file is taken to be left over from an interrupted
+     * write. Younger ones may belong to a write in progress, perhaps by another store on the
+     * same directory, so they're left alone.
+     */
+    public static final long TEMP_FILE_MAX_AGE = 60 * 60 * 1000;
+
+    /**
+     * Name of the database file a shared store keeps in its directory.
+     */
+    public static final String SHARED_DATABASE_NAME = "blobs.sqlite3";
 
     private String path;
+    private SQLiteDatabase database;
+    private int inlineThreshold = 0;
+    private boolean compressionEnabled = false;
+    private boolean chunkingEnabled = false;
+    private int mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+    private boolean syncDeferred = false;
+    private List<File> unsyncedFiles = new ArrayList<File>();
+    private String owner;           // the database this is a view for, in a shared store
+    private Object sharedLock;      // guards blob_refs against concurrent garbage collection
+    private Map<TDBlobKey, ByteBuffer> mappings = new LinkedHashMap<TDBlobKey, ByteBuffer>(MAX_CACHED_MAPPINGS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TDBlobKey, ByteBuffer> eldest) {
+            return size() > MAX_CACHED_MAPPINGS;
+        }
+    };
 
     public TDBlobStore(String path) {
         this.path = path;
@@ -53,6 +135,284 @@ public class TDBlobStore {
         else if(!directory.isDirectory()) {
             throw new IllegalArgumentException("Directory for blob store is not a directory");
         }
+        deleteTempFiles();
+    }
+
+    /**
+     * Creates a blob store that keeps small blobs in the given database's "blobs" table.
+     * Blobs are still addressed by the same TDBlobKey regardless of where they are stored.
+     */
+    public TDBlobStore(String path, SQLiteDatabase database) {
+        this(path);
+        this.database = database;
+        this.inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    }
+
+    private TDBlobStore(TDBlobStore shared, String owner) {
+        this.path = shared.path;
+        this.database = shared.database;
+        this.inlineThreshold = shared.inlineThreshold;
+        this.compressionEnabled = shared.compressionEnabled;
+        this.chunkingEnabled = shared.chunkingEnabled;
+        this.mappingThreshold = shared.mappingThreshold;
+        this.syncDeferred = shared.syncDeferred;
+        this.owner = owner;
+        this.sharedLock = shared.sharedLock;
+    }
+
+    /**
+     * Opens (creating if necessary) a store meant to be shared by all the databases of a
+     * TDServer. It keeps its inline blobs, chunk manifests and references in a database of its
+     * own in the given directory. Databases should use it through storeForDatabase.
+     */
+    public static TDBlobStore openSharedStore(String path) {
+        TDBlobStore result = new TDBlobStore(path);
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDatabase.openDatabase(path + File.separator + SHARED_DATABASE_NAME, null, SQLiteDatabase.CREATE_IF_NECESSARY);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error opening shared blob store", e);
+            return null;
+        }
+        try {
+            if(database.getVersion() < 1) {
+                database.execSQL("CREATE TABLE blobs (key BLOB PRIMARY KEY, content BLOB, encoding INTEGER DEFAULT 0)");
+                database.execSQL("CREATE TABLE blob_chunks (key BLOB NOT NULL, chunk INTEGER NOT NULL, chunk_key BLOB NOT NULL, " +
+                        "PRIMARY KEY (key, chunk))");
+                database.execSQL("CREATE TABLE blob_refs (key BLOB NOT NULL, db TEXT NOT NULL, PRIMARY KEY (key, db))");
+                database.execSQL("PRAGMA user_version = 1");
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error initializing shared blob store", e);
+            database.close();
+            return null;
+        }
+        result.database = database;
+        result.inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+        result.sharedLock = new Object();
+        return result;
+    }
+
+    /**
+     * Returns a view of a shared store for the named database. Blobs stored through it are
+     * referenced by that database until a deleteBlobsExceptWithKeys call on it drops them; a blob
+     * is only deleted once no database references it. The view starts with the shared store's
+     * settings but can be configured independently.
+     */
+    public TDBlobStore storeForDatabase(String name) {
+        assert(sharedLock != null && owner == null);
+        return new TDBlobStore(this, name);
+    }
+
+    public boolean isShared() {
+        return sharedLock != null;
+    }
+
+    /**
+     * Closes the database of a store returned by openSharedStore.
+     */
+    public void close() {
+        if(sharedLock != null && owner == null && database != null) {
+            database.close();
+        }
+    }
+
+    /**
+     * Records that this view's database references a blob, if this is a view of a shared store.
+     * Done before looking for the blob, so a concurrent garbage collection can't delete it
+     * between the two.
+     */
+    private void addReference(TDBlobKey key) {
+        if(owner == null) {
+            return;
+        }
+        synchronized(sharedLock) {
+            ContentValues values = new ContentValues();
+            values.put("key", key.getBytes());
+            values.put("db", owner);
+            try {
+                database.insertWithOnConflict("blob_refs", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error adding blob reference", e);
+            }
+        }
+    }
+
+    /**
+     * Copies all the blobs of another store into this one, as they are stored (so compressed
+     * blobs stay compressed). Used to move a database's own attachments into a shared store.
+     */
+    public boolean importBlobs(TDBlobStore other) {
+        for (TDBlobKey key : other.allKeys()) {
+            addReference(key);
+            if(encodingForKey(key) != null) {
+                continue;
+            }
+            TDAttachmentEncoding encoding = other.encodingForKey(key);
+            byte[] data = other.blobForKey(key, false);
+            if(encoding == null || data == null || storeEncodedBlob(data, encoding, key) == null) {
+                Log.e(TDDatabase.TAG, "Unable to import blob " + key);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * Sets the size below which new blobs are stored in the database. 0 disables inline storage.
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * If enabled, new blobs with a compressible content type are stored gzipped.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isChunkingEnabled() {
+        return chunkingEnabled;
+    }
+
+    /**
+     * If enabled, new blobs of at least CHUNKING_THRESHOLD bytes are stored as chunks (uncompressed).
+     * Requires a database to hold the manifests.
+     */
+    public void setChunkingEnabled(boolean chunkingEnabled) {
+        this.chunkingEnabled = chunkingEnabled;
+    }
+
+    public int getMappingThreshold() {
+        return mappingThreshold;
+    }
+
+    /**
+     * Sets the size from which blobBufferForKey memory-maps blob files instead of reading them.
+     */
+    public void setMappingThreshold(int mappingThreshold) {
+        this.mappingThreshold = mappingThreshold;
+    }
+
+    public boolean isSyncDeferred() {
+        return syncDeferred;
+    }
+
+    /**
+     * If enabled, new blob files aren't synced to disk one by one as they're written, but all
+     * together by the next call to syncPendingFiles. TDDatabase calls that just before it
+     * commits a transaction, so a bulk import pays for one round of syncs per transaction.
+     */
+    public void setSyncDeferred(boolean syncDeferred) {
+        this.syncDeferred = syncDeferred;
+    }
+
+    /**
+     * Syncs to disk the blob files written since the last call, if syncing is deferred.
+     * Returns false if any of them couldn't be synced.
+     */
+    public boolean syncPendingFiles() {
+        List<File> files;
+        synchronized(unsyncedFiles) {
+            files = new ArrayList<File>(unsyncedFiles);
+            unsyncedFiles.clear();
+        }
+        boolean result = true;
+        for (File file : files) {
+            try {
+                syncFile(file);
+            } catch (IOException e) {
+                Log.e(TDDatabase.TAG, "Error syncing blob file " + file, e);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    private static void syncFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Moves a fully written temp file to its place in the store, syncing it first unless
+     * syncing is deferred.
+     */
+    private boolean installFile(File tempFile, TDBlobKey key, TDAttachmentEncoding encoding) throws IOException {
+        if(!syncDeferred) {
+            syncFile(tempFile);
+        }
+        File file = new File(pathForKey(key, encoding));
+        if(!tempFile.renameTo(file)) {
+            Log.e(TDDatabase.TAG, "Error moving temp file into blob store");
+            return false;
+        }
+        if(syncDeferred) {
+            synchronized(unsyncedFiles) {
+                unsyncedFiles.add(file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes temp files left behind by writes that were interrupted by a crash, i.e. those
+     * that haven't been written to for TEMP_FILE_MAX_AGE.
+     */
+    private void deleteTempFiles() {
+        final long cutoff = System.currentTimeMillis() - TEMP_FILE_MAX_AGE;
+        File[] tempFiles = new File(path).listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(TEMP_FILE_EXTENSION) && new File(dir, filename).lastModified() < cutoff;
+            }
+
+        });
+        if(tempFiles != null) {
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private boolean shouldChunk(long length) {
+        return chunkingEnabled && database != null && length >= CHUNKING_THRESHOLD;
+    }
+
+    /**
+     * Text-based types (text/*, JSON, JavaScript, XML, SVG) compress well; most others
+     * (images, audio, archives) are already compressed.
+     */
+    public static boolean isCompressibleContentType(String contentType) {
+        if(contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int semicolonPos = type.indexOf(';');
+        if(semicolonPos >= 0) {
+            type = type.substring(0, semicolonPos);
+        }
+        type = type.trim();
+        return type.startsWith("text/")
+                || type.equals("application/json")
+                || type.equals("application/javascript")
+                || type.equals("application/xml")
+                || type.endsWith("+xml")
+                || type.endsWith("+json");
     }
 
     public static TDBlobKey keyForBlob(byte[] data) {
@@ -74,7 +434,18 @@ public class TDBlobStore {
         return path + File.separator + TDBlobKey.convertToHex(key.getBytes()) + FILE_EXTENSION;
     }
 
+    public String pathForKey(TDBlobKey key, TDAttachmentEncoding encoding) {
+        String result = pathForKey(key);
+        if(encoding == TDAttachmentEncoding.TDAttachmentEncodingGZIP) {
+            result += GZIP_FILE_EXTENSION;
+        }
+        return result;
+    }
+
     public boolean getKeyForFilename(TDBlobKey outKey, String filename) {
+        if(filename.endsWith(GZIP_FILE_EXTENSION)) {
+            filename = filename.substring(0, filename.length() - GZIP_FILE_EXTENSION.length());
+        }
         if(!filename.endsWith(FILE_EXTENSION)) {
             return false;
         }
@@ -87,36 +458,193 @@ public class TDBlobStore {
     }
 
     public byte[] blobForKey(TDBlobKey key) {
-        String path = pathForKey(key);
-        File file = new File(path);
+        return blobForKey(key, true);
+    }
+
+    /**
+     * Returns the contents of a blob. If decode is false, a blob that was stored gzipped is
+     * returned still compressed.
+     */
+    public byte[] blobForKey(TDBlobKey key, boolean decode) {
+        TDAttachmentEncoding encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
         byte[] result = null;
+        if(database != null) {
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery("SELECT content, encoding FROM blobs WHERE key=" + sqlLiteralForKey(key), null);
+                if(cursor.moveToFirst()) {
+                    result = cursor.getBlob(0);
+                    encoding = TDAttachmentEncoding.values()[cursor.getInt(1)];
+                }
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error reading inline blob", e);
+            } finally {
+                if(cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        if(result == null) {
+            File file = new File(pathForKey(key));
+            if(!file.exists()) {
+                encoding = TDAttachmentEncoding.TDAttachmentEncodingGZIP;
+                file = new File(pathForKey(key, encoding));
+            }
+            try {
+                if(file.exists()) {
+                    result = getBytesFromFile(file);
+                } else {
+                    result = chunkedBlobForKey(key);
+                    encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
+                }
+            } catch (IOException e) {
+                Log.e(TDDatabase.TAG, "Error reading file", e);
+            }
+        }
+        if(result != null && decode && encoding == TDAttachmentEncoding.TDAttachmentEncodingGZIP) {
+            result = GzipUtils.decompress(result);
+        }
+        return result;
+    }
+
+    /**
+     * Opens a stream on the contents of a blob, or returns null if it's missing. As with
+     * blobForKey, if decode is false a gzipped blob is read still compressed.
+     */
+    public InputStream blobStreamForKey(TDBlobKey key, boolean decode) {
+        TDAttachmentEncoding encoding = encodingForKey(key);
+        if(encoding == null) {
+            return null;
+        }
         try {
-            result = getBytesFromFile(file);
+            InputStream result;
+            File file = new File(pathForKey(key, encoding));
+            List<TDBlobKey> chunkKeys;
+            if(file.exists()) {
+                result = new FileInputStream(file);
+            } else if((chunkKeys = chunkKeysForKey(key)).size() > 0) {
+                result = new SequenceInputStream(new ChunkStreamEnumeration(chunkKeys));
+            } else {
+                byte[] inline = blobForKey(key, false);
+                if(inline == null) {
+                    return null;
+                }
+                result = new ByteArrayInputStream(inline);
+            }
+            if(decode && encoding == TDAttachmentEncoding.TDAttachmentEncodingGZIP) {
+                result = new GZIPInputStream(result);
+            }
+            return result;
         } catch (IOException e) {
-            Log.e(TDDatabase.TAG, "Error reading file", e);
+            Log.e(TDDatabase.TAG, "Error opening blob", e);
+            return null;
         }
-        return result;
+    }
+
+    /**
+     * Returns the contents of a blob as a read-only buffer, or null if it's missing.
+     * Uncompressed blob files of at least the mapping threshold are memory-mapped, so reading
+     * them is backed by the page cache rather than the Java heap; the most recently used
+     * mappings are kept open for reuse. Other blobs are read into memory as by blobForKey.
+     */
+    public ByteBuffer blobBufferForKey(TDBlobKey key) {
+        synchronized(mappings) {
+            ByteBuffer mapped = mappings.get(key);
+            if(mapped != null) {
+                return mapped.duplicate();
+            }
+        }
+        File file = new File(pathForKey(key));
+        if(file.length() >= mappingThreshold) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                synchronized(mappings) {
+                    mappings.put(key, mapped);
+                }
+                return mapped.duplicate();
+            } catch (IOException e) {
+                Log.w(TDDatabase.TAG, "Unable to map blob file, reading it instead", e);
+            } finally {
+                if(raf != null) {
+                    try {
+                        // the mapping stays valid after the file is closed
+                        raf.close();
+                    } catch (IOException e) {
+                        Log.w(TDDatabase.TAG, "Error closing blob file", e);
+                    }
+                }
+            }
+        }
+        byte[] contents = blobForKey(key);
+        if(contents == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(contents).asReadOnlyBuffer();
     }
 
     public boolean storeBlob(byte[] data, TDBlobKey outKey) {
+        return storeBlob(data, null, outKey) != null;
+    }
+
+    /**
+     * Stores a blob, compressing it first if compression is enabled and the content type is
+     * compressible. Returns the encoding the blob is stored with, which is that of the existing
+     * copy if the same contents were already stored, or null on failure.
+     */
+    public TDAttachmentEncoding storeBlob(byte[] data, String contentType, TDBlobKey outKey) {
         TDBlobKey newKey = keyForBlob(data);
         outKey.setBytes(newKey.getBytes());
-        String path = pathForKey(outKey);
-        File file = new File(path);
-        if(file.canRead()) {
-            return true;
+        addReference(outKey);
+        TDAttachmentEncoding existing = verifiedEncodingForKey(outKey, data.length);
+        if(existing != null) {
+            return existing;
+        }
+        if(shouldChunk(data.length)) {
+            return storeChunkedBlob(new ByteArrayInputStream(data), outKey) ? TDAttachmentEncoding.TDAttachmentEncodingNone : null;
+        }
+        return storeSingleBlob(data, contentType, outKey);
+    }
+
+    /**
+     * Stores a blob (with a key already computed and not yet stored) in a file or inline.
+     */
+    private TDAttachmentEncoding storeSingleBlob(byte[] data, String contentType, TDBlobKey outKey) {
+        TDAttachmentEncoding encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
+        if(compressionEnabled && isCompressibleContentType(contentType)) {
+            byte[] compressed = GzipUtils.compress(data);
+            if(compressed != null && compressed.length < data.length) {
+                data = compressed;
+                encoding = TDAttachmentEncoding.TDAttachmentEncodingGZIP;
+            }
+        }
+        return storeEncodedBlob(data, encoding, outKey);
+    }
+
+    /**
+     * Stores a blob's data as is, already encoded if it's compressed, in a file or inline.
+     */
+    private TDAttachmentEncoding storeEncodedBlob(byte[] data, TDAttachmentEncoding encoding, TDBlobKey outKey) {
+        if(database != null && data.length < inlineThreshold) {
+            return storeInlineBlob(data, encoding, outKey) ? encoding : null;
         }
 
+        File tempFile = null;
         FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(file);
+            tempFile = createTempFile();
+            fos = new FileOutputStream(tempFile);
             fos.write(data);
+            fos.close();
+            fos = null;
+            return installFile(tempFile, outKey, encoding) ? encoding : null;
         } catch (FileNotFoundException e) {
             Log.e(TDDatabase.TAG, "Error opening file for output", e);
-            return false;
+            return null;
         } catch(IOException ioe) {
             Log.e(TDDatabase.TAG, "Error writing to file", ioe);
-            return false;
+            return null;
         } finally {
             if(fos != null) {
                 try {
@@ -125,11 +653,424 @@ public class TDBlobStore {
                     // ignore
                 }
             }
+            if(tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Splits a stream into chunks, stores those that aren't already stored, and records the
+     * manifest under the given key.
+     */
+    private boolean storeChunkedBlob(InputStream in, TDBlobKey key) {
+        if(sharedLock != null) {
+            // Chunks aren't referenced directly, so keep garbage collection out until the manifest is complete
+            synchronized(sharedLock) {
+                return storeChunks(in, key);
+            }
+        }
+        return storeChunks(in, key);
+    }
+
+    private boolean storeChunks(InputStream in, TDBlobKey key) {
+        TDBlobChunker chunker = new TDBlobChunker(in);
+        try {
+            byte[] chunk;
+            int index = 0;
+            while((chunk = chunker.nextChunk()) != null) {
+                TDBlobKey chunkKey = keyForBlob(chunk);
+                if(verifiedEncodingForKey(chunkKey, chunk.length) == null && storeSingleBlob(chunk, null, chunkKey) == null) {
+                    throw new IOException("Unable to store chunk");
+                }
+                ContentValues values = new ContentValues();
+                values.put("key", key.getBytes());
+                values.put("chunk", index++);
+                values.put("chunk_key", chunkKey.getBytes());
+                database.insertOrThrow("blob_chunks", null, values);
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error storing chunked blob", e);
+            try {
+                database.execSQL("DELETE FROM blob_chunks WHERE key=" + sqlLiteralForKey(key));
+            } catch (SQLException e2) {
+                Log.e(TDDatabase.TAG, "Error deleting partial chunk manifest", e2);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The keys of the chunks of a chunked blob, in order; empty if it isn't one.
+     */
+    private List<TDBlobKey> chunkKeysForKey(TDBlobKey key) {
+        List<TDBlobKey> result = new ArrayList<TDBlobKey>();
+        if(database == null) {
+            return result;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT chunk_key FROM blob_chunks WHERE key=" + sqlLiteralForKey(key) + " ORDER BY chunk", null);
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()) {
+                result.add(new TDBlobKey(cursor.getBlob(0)));
+                cursor.moveToNext();
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error reading chunk manifest", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private byte[] chunkedBlobForKey(TDBlobKey key) throws IOException {
+        List<TDBlobKey> chunkKeys = chunkKeysForKey(key);
+        if(chunkKeys.size() == 0) {
+            throw new FileNotFoundException("No blob for key " + key);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (TDBlobKey chunkKey : chunkKeys) {
+            byte[] chunk = blobForKey(chunkKey, true);
+            if(chunk == null) {
+                throw new IOException("Missing chunk " + chunkKey + " of blob " + key);
+            }
+            result.write(chunk);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Opens the chunks of a chunked blob one at a time, as a SequenceInputStream reaches them.
+     */
+    private class ChunkStreamEnumeration implements Enumeration<InputStream> {
+
+        private Iterator<TDBlobKey> chunkKeys;
+
+        public ChunkStreamEnumeration(List<TDBlobKey> chunkKeys) {
+            this.chunkKeys = chunkKeys.iterator();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return chunkKeys.hasNext();
+        }
+
+        @Override
+        public InputStream nextElement() {
+            TDBlobKey chunkKey = chunkKeys.next();
+            InputStream result = blobStreamForKey(chunkKey, true);
+            if(result == null) {
+                // SequenceInputStream can't be handed an IOException here, so fail on the next read
+                final String message = "Missing chunk " + chunkKey;
+                return new InputStream() {
+
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException(message);
+                    }
+
+                };
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * The encoding of an already-stored blob, or null if there is no blob with this key.
+     */
+    public TDAttachmentEncoding encodingForKey(TDBlobKey key) {
+        if(new File(pathForKey(key)).canRead()) {
+            return TDAttachmentEncoding.TDAttachmentEncodingNone;
+        }
+        if(new File(pathForKey(key, TDAttachmentEncoding.TDAttachmentEncodingGZIP)).canRead()) {
+            return TDAttachmentEncoding.TDAttachmentEncodingGZIP;
+        }
+        if(database == null) {
+            return null;
+        }
+        TDAttachmentEncoding result = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT encoding FROM blobs WHERE key=" + sqlLiteralForKey(key), null);
+            if(cursor.moveToFirst()) {
+                result = TDAttachmentEncoding.values()[cursor.getInt(0)];
+            }
+            else if(inlineQueryForLong("SELECT COUNT(*) FROM blob_chunks WHERE key=" + sqlLiteralForKey(key)) > 0) {
+                result = TDAttachmentEncoding.TDAttachmentEncodingNone;
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error reading inline blob", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Like encodingForKey, but first checks that an existing blob file or chunked blob really
+     * has the length of the contents being stored under its key, and deletes it if it doesn't so
+     * that it can be stored again. (A crash used to be able to leave a truncated file behind under
+     * a valid key.) Only lengths are compared, which takes no more than a stat of each file and
+     * the trailer of a gzipped one; inline blobs are as safe as the database itself, so they
+     * aren't checked.
+     */
+    private TDAttachmentEncoding verifiedEncodingForKey(TDBlobKey key, long length) {
+        TDAttachmentEncoding encoding = encodingForKey(key);
+        if(encoding == null) {
+            return null;
+        }
+        File file = new File(pathForKey(key, encoding));
+        boolean isFile = file.exists();
+        long storedLength;
+        if(isFile) {
+            if(encoding == TDAttachmentEncoding.TDAttachmentEncodingGZIP) {
+                // The gzip trailer records the length modulo 2^32:
+                storedLength = gzippedFileLength(file);
+                length &= 0xFFFFFFFFL;
+            } else {
+                storedLength = file.length();
+            }
+        } else {
+            List<TDBlobKey> chunkKeys = chunkKeysForKey(key);
+            if(chunkKeys.size() == 0) {
+                return encoding;
+            }
+            storedLength = 0;
+            for (TDBlobKey chunkKey : chunkKeys) {
+                long chunkLength = chunkLength(chunkKey);
+                if(chunkLength < 0) {
+                    storedLength = -1;
+                    break;
+                }
+                storedLength += chunkLength;
+            }
+        }
+        if(storedLength == length) {
+            return encoding;
+        }
+
+        Log.w(TDDatabase.TAG, "Blob " + key + " is damaged; discarding it");
+        synchronized(mappings) {
+            mappings.remove(key);
+        }
+        if(isFile) {
+            file.delete();
+        } else {
+            try {
+                database.execSQL("DELETE FROM blob_chunks WHERE key=" + sqlLiteralForKey(key));
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error deleting chunk manifest", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The uncompressed length (modulo 2^32) recorded in the trailer of a gzipped file, or -1 if
+     * it's too short to have one or can't be read.
+     */
+    private static long gzippedFileLength(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if(raf.length() < 18) {
+                return -1;
+            }
+            raf.seek(raf.length() - 4);
+            byte[] trailer = new byte[4];
+            raf.readFully(trailer);
+            return (trailer[0] & 0xFFL) | (trailer[1] & 0xFFL) << 8 | (trailer[2] & 0xFFL) << 16 | (trailer[3] & 0xFFL) << 24;
+        } catch (IOException e) {
+            Log.w(TDDatabase.TAG, "Error reading blob", e);
+            return -1;
+        } finally {
+            if(raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * The length of a chunk of a chunked blob (chunks are stored uncompressed, as files or
+     * inline), or -1 if it's missing.
+     */
+    private long chunkLength(TDBlobKey chunkKey) {
+        File file = new File(pathForKey(chunkKey));
+        if(file.exists()) {
+            return file.length();
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT LENGTH(content) FROM blobs WHERE key=" + sqlLiteralForKey(chunkKey), null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error reading inline blob", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the store's directory, for a TDBlobStoreWriter.
+     */
+    File createTempFile() throws IOException {
+        return File.createTempFile("tmp", TEMP_FILE_EXTENSION, new File(path));
+    }
+
+    /**
+     * Moves a temp file written by a TDBlobStoreWriter into the store under the given key,
+     * compressing it or storing it inline just as storeBlob would. The temp file is always
+     * consumed. Returns the encoding the blob is stored with, or null on failure.
+     */
+    TDAttachmentEncoding installTempFile(File tempFile, TDBlobKey key, String contentType) {
+        try {
+            addReference(key);
+            TDAttachmentEncoding existing = verifiedEncodingForKey(key, tempFile.length());
+            if(existing != null) {
+                return existing;
+            }
+
+            if(shouldChunk(tempFile.length())) {
+                InputStream in = new FileInputStream(tempFile);
+                try {
+                    return storeChunkedBlob(in, key) ? TDAttachmentEncoding.TDAttachmentEncodingNone : null;
+                } finally {
+                    in.close();
+                }
+            }
+
+            TDAttachmentEncoding encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
+            if(compressionEnabled && isCompressibleContentType(contentType)) {
+                File compressedFile = createTempFile();
+                InputStream in = new FileInputStream(tempFile);
+                FileOutputStream out = new FileOutputStream(compressedFile);
+                try {
+                    GzipUtils.compress(in, out);
+                } finally {
+                    in.close();
+                    out.close();
+                }
+                if(compressedFile.length() < tempFile.length()) {
+                    tempFile.delete();
+                    tempFile = compressedFile;
+                    encoding = TDAttachmentEncoding.TDAttachmentEncodingGZIP;
+                } else {
+                    compressedFile.delete();
+                }
+            }
+
+            if(database != null && tempFile.length() < inlineThreshold) {
+                return storeInlineBlob(getBytesFromFile(tempFile), encoding, key) ? encoding : null;
+            }
+            return installFile(tempFile, key, encoding) ? encoding : null;
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error installing blob", e);
+            return null;
+        } finally {
+            tempFile.delete();
         }
+    }
 
+    // Literal for matching a key against the BLOB "key" column; rawQuery can only bind strings.
+    private static String sqlLiteralForKey(TDBlobKey key) {
+        return "X'" + TDBlobKey.convertToHex(key.getBytes()) + "'";
+    }
+
+    private boolean storeInlineBlob(byte[] data, TDAttachmentEncoding encoding, TDBlobKey key) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put("key", key.getBytes());
+            values.put("content", data);
+            values.put("encoding", encoding.ordinal());
+            database.insertWithOnConflict("blobs", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error storing inline blob", e);
+            return false;
+        }
         return true;
     }
 
+    private List<TDBlobKey> allInlineKeys() {
+        return inlineQueryForKeys("SELECT key FROM blobs");
+    }
+
+    private List<TDBlobKey> allChunkedKeys() {
+        return inlineQueryForKeys("SELECT DISTINCT key FROM blob_chunks");
+    }
+
+    private List<TDBlobKey> inlineQueryForKeys(String sql) {
+        List<TDBlobKey> result = new ArrayList<TDBlobKey>();
+        if(database == null) {
+            return result;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, null);
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()) {
+                result.add(new TDBlobKey(cursor.getBlob(0)));
+                cursor.moveToNext();
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error listing inline blobs", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private long inlineQueryForLong(String sql) {
+        if(database == null) {
+            return 0;
+        }
+        long result = 0;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, null);
+            if(cursor.moveToFirst()) {
+                result = cursor.getLong(0);
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error querying inline blobs", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The files in the store's directory holding blobs, i.e. excluding in-progress temp files.
+     */
+    private File[] blobFiles() {
+        File file = new File(path);
+        return file.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(FILE_EXTENSION) || filename.endsWith(FILE_EXTENSION + GZIP_FILE_EXTENSION);
+            }
+
+        });
+    }
+
     private static byte[] getBytesFromFile(File file) throws IOException {
         InputStream is = new FileInputStream(file);
 
@@ -159,40 +1100,149 @@ public class TDBlobStore {
 
     public Set<TDBlobKey> allKeys() {
         Set<TDBlobKey> result = new HashSet<TDBlobKey>();
-        File file = new File(path);
-        File[] contents = file.listFiles();
+        File[] contents = blobFiles();
         for (File attachment : contents) {
             TDBlobKey attachmentKey = new TDBlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
             result.add(attachmentKey);
         }
+        result.addAll(allInlineKeys());
+        result.addAll(allChunkedKeys());
         return result;
     }
 
+    /**
+     * The number of blobs stored, counting each chunked blob as well as each of its chunks.
+     */
     public int count() {
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        return contents.length;
+        File[] contents = blobFiles();
+        return contents.length + (int)inlineQueryForLong("SELECT COUNT(*) FROM blobs")
+                + (int)inlineQueryForLong("SELECT COUNT(DISTINCT key) FROM blob_chunks");
     }
 
     public long totalDataSize() {
+        return totalFileDataSize() + inlineQueryForLong("SELECT SUM(LENGTH(content)) FROM blobs");
+    }
+
+    /**
+     * Size of the blobs stored as files; inline blobs are already part of the database file.
+     */
+    public long totalFileDataSize() {
         long total = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
+        File[] contents = blobFiles();
         for (File attachment : contents) {
             total += attachment.length();
         }
         return total;
     }
 
+    /**
+     * Deletes all blobs except those with the given keys. On a view of a shared store, the keys
+     * become the complete set of blobs its database references, and only blobs that no database
+     * references any longer are deleted.
+     */
     public int deleteBlobsExceptWithKeys(List<TDBlobKey> keysToKeep) {
+        if(owner == null) {
+            return deleteBlobsExcept(keysToKeep);
+        }
+        synchronized(sharedLock) {
+            database.beginTransaction();
+            try {
+                database.delete("blob_refs", "db=?", new String[] { owner });
+                for (TDBlobKey key : keysToKeep) {
+                    ContentValues values = new ContentValues();
+                    values.put("key", key.getBytes());
+                    values.put("db", owner);
+                    database.insertWithOnConflict("blob_refs", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+                database.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error updating blob references", e);
+                return 0;
+            } finally {
+                database.endTransaction();
+            }
+            return deleteBlobsExcept(inlineQueryForKeys("SELECT DISTINCT key FROM blob_refs"));
+        }
+    }
+
+    /**
+     * Deletes one blob that turned out not to be needed, such as one stored for an attachment of
+     * a revision that was then rejected. On a view of a shared store, only its database's
+     * reference is dropped, and the blob is deleted once no database references it. A blob that
+     * is also a chunk of a chunked blob is kept.
+     */
+    public void deleteBlobForKey(TDBlobKey key) {
+        if(owner == null) {
+            deleteUnchunkedBlob(key);
+            return;
+        }
+        synchronized(sharedLock) {
+            try {
+                database.delete("blob_refs", "key=" + sqlLiteralForKey(key) + " AND db=?", new String[] { owner });
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error removing blob reference", e);
+                return;
+            }
+            if(inlineQueryForLong("SELECT COUNT(*) FROM blob_refs WHERE key=" + sqlLiteralForKey(key)) == 0) {
+                deleteUnchunkedBlob(key);
+            }
+        }
+    }
+
+    private void deleteUnchunkedBlob(TDBlobKey key) {
+        if(inlineQueryForLong("SELECT COUNT(*) FROM blob_chunks WHERE chunk_key=" + sqlLiteralForKey(key)) > 0) {
+            return;
+        }
+        synchronized(mappings) {
+            mappings.remove(key);
+        }
+        new File(pathForKey(key)).delete();
+        new File(pathForKey(key, TDAttachmentEncoding.TDAttachmentEncodingGZIP)).delete();
+        if(database != null) {
+            try {
+                database.execSQL("DELETE FROM blobs WHERE key=" + sqlLiteralForKey(key));
+                database.execSQL("DELETE FROM blob_chunks WHERE key=" + sqlLiteralForKey(key));
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error deleting blob", e);
+            }
+        }
+    }
+
+    private int deleteBlobsExcept(List<TDBlobKey> keysToKeep) {
+        Set<TDBlobKey> keep = new HashSet<TDBlobKey>(keysToKeep);
         int numDeleted = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
+        // Delete the manifests of unused chunked blobs, and keep the chunks of the others:
+        for (TDBlobKey chunkedKey : allChunkedKeys()) {
+            if(keep.contains(chunkedKey)) {
+                keep.addAll(chunkKeysForKey(chunkedKey));
+            } else {
+                try {
+                    database.execSQL("DELETE FROM blob_chunks WHERE key=" + sqlLiteralForKey(chunkedKey));
+                    ++numDeleted;
+                } catch (SQLException e) {
+                    Log.e(TDDatabase.TAG, "Error deleting chunked blob", e);
+                }
+            }
+        }
+        for (TDBlobKey inlineKey : allInlineKeys()) {
+            if(!keep.contains(inlineKey)) {
+                try {
+                    database.execSQL("DELETE FROM blobs WHERE key=" + sqlLiteralForKey(inlineKey));
+                    ++numDeleted;
+                } catch (SQLException e) {
+                    Log.e(TDDatabase.TAG, "Error deleting inline blob", e);
+                }
+            }
+        }
+        File[] contents = blobFiles();
         for (File attachment : contents) {
             TDBlobKey attachmentKey = new TDBlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
-            if(!keysToKeep.contains(attachmentKey)) {
+            if(!keep.contains(attachmentKey)) {
+                synchronized(mappings) {
+                    mappings.remove(attachmentKey);
+                }
                 boolean result = attachment.delete();
                 if(result) {
                     ++numDeleted;
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
+
+/**
+ * Writes a new blob to a TDBlobStore incrementally, without holding all of it in memory.
+ * The data goes to a temporary file; call finish() when it's all been written, then install()
+ * to add it to the store (or cancel() to discard it).
+ */
+public class TDBlobStoreWriter {
+
+    private TDBlobStore store;
+    private File tempFile;
+    private MessageDigest sha1Digest;
+    private DigestOutputStream outputStream;
+    private TDBlobKey blobKey;
+    private long length;
+
+    public TDBlobStoreWriter(TDBlobStore store) throws IOException {
+        this.store = store;
+        try {
+            sha1Digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 digest is unavailable");
+        }
+        tempFile = store.createTempFile();
+        outputStream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), sha1Digest);
+    }
+
+    /**
+     * The stream to write the blob's data to. Closing it is optional; finish() closes it.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public void appendData(byte[] data, int offset, int len) throws IOException {
+        outputStream.write(data, offset, len);
+    }
+
+    /**
+     * Call this after all the data has been written.
+     */
+    public void finish() throws IOException {
+        outputStream.close();
+        blobKey = new TDBlobKey(sha1Digest.digest());
+        length = tempFile.length();
+    }
+
+    /**
+     * Reads back the data written so far; only valid after finish().
+     */
+    public InputStream openInputStream() throws IOException {
+        return new FileInputStream(tempFile);
+    }
+
+    /**
+     * Discards the data written so far.
+     */
+    public void cancel() {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        tempFile.delete();
+    }
+
+    /**
+     * Adds the finished blob to the store, compressing it if the store would for this content type.
+     * Returns the encoding it's stored with, or null on failure.
+     */
+    public TDAttachmentEncoding install(String contentType) {
+        return store.installTempFile(tempFile, blobKey, contentType);
+    }
+
+    public TDBlobKey getBlobKey() {
+        return blobKey;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * CouchDB's built-in reduce functions, "_count", "_sum" and "_stats". They can be used as the
+ * reduce block of any view, and a view compiler returns them for their names. Queries of views
+ * reducing with them over whole keys are done by SQLite as aggregates of the index rows, as long
+ * as the values are plain numbers; otherwise they reduce in Java like any other reduce block.
+ */
+public enum TDBuiltinReduceBlock implements TDViewReduceBlock {
+
+    /** Counts the rows. */
+    TDBuiltinReduceCount("_count"),
+    /** Totals the values, which are numbers or arrays of numbers (totalled element by element). */
+    TDBuiltinReduceSum("_sum"),
+    /** Computes the sum, count, min, max and sum of squares ("sumsqr") of the numeric values. */
+    TDBuiltinReduceStats("_stats");
+
+    /**
+     * The aggregates of the "value" column that the result of any of these is computed from:
+     * the row count, the number of values that aren't numbers, and the sum, min, max and sum of
+     * squares of the values. A JSON value made only of digits, signs, points and exponents is a number.
+     */
+    static final String SQL_AGGREGATES = "count(*), "
+            + "total(value GLOB '*[^-+.0-9eE]*'), "
+            + "total(value), min(value + 0), max(value + 0), total((value + 0) * (value + 0))";
+
+    private final String name;
+
+    private TDBuiltinReduceBlock(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the built-in reduce function with the given source (such as "_sum"), or null if it
+     * isn't the name of one.
+     */
+    public static TDBuiltinReduceBlock forName(String source) {
+        String trimmed = source.trim();
+        for (TDBuiltinReduceBlock builtin : values()) {
+            if(builtin.name.equals(trimmed)) {
+                return builtin;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        switch (this) {
+        case TDBuiltinReduceCount:
+            if(rereduce) {
+                return numberValue(TDView.totalValues(values));
+            }
+            return (long)values.size();
+        case TDBuiltinReduceSum:
+            return sum(values);
+        default:
+            return rereduce ? combineStats(values) : stats(values);
+        }
+    }
+
+    /**
+     * Can the reduction be made from the SQL_AGGREGATES at column in the cursor's current row?
+     */
+    boolean canReduceAggregates(Cursor cursor, int column) {
+        return this == TDBuiltinReduceCount || cursor.getLong(column + 1) == 0;
+    }
+
+    /**
+     * Returns the reduction made from the SQL_AGGREGATES at column in the cursor's current row.
+     */
+    Object reducedAggregates(Cursor cursor, int column) {
+        long count = cursor.getLong(column);
+        switch (this) {
+        case TDBuiltinReduceCount:
+            return count;
+        case TDBuiltinReduceSum:
+            return numberValue(cursor.getDouble(column + 2));
+        default:
+            Map<String,Object> result = new HashMap<String,Object>();
+            result.put("sum", numberValue(cursor.getDouble(column + 2)));
+            result.put("count", count);
+            result.put("min", numberValue(cursor.getDouble(column + 3)));
+            result.put("max", numberValue(cursor.getDouble(column + 4)));
+            result.put("sumsqr", numberValue(cursor.getDouble(column + 5)));
+            return result;
+        }
+    }
+
+    private static Object sum(List<Object> values) {
+        double total = 0;
+        List<Double> totals = null;
+        for (Object value : values) {
+            if(value instanceof Number) {
+                total += ((Number)value).doubleValue();
+            } else if(value instanceof List) {
+                List<?> list = (List<?>)value;
+                if(totals == null) {
+                    totals = new ArrayList<Double>();
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    double element = (list.get(i) instanceof Number) ? ((Number)list.get(i)).doubleValue() : 0;
+                    if(i < totals.size()) {
+                        totals.set(i, totals.get(i) + element);
+                    } else {
+                        totals.add(element);
+                    }
+                }
+            } else {
+                Log.w(TDDatabase.TAG, "Warning non-numeric value found in _sum: " + value);
+            }
+        }
+        if(totals == null) {
+            return numberValue(total);
+        }
+        // Like CouchDB, a number in with arrays is added to their first elements:
+        if(totals.size() == 0) {
+            totals.add(0.0);
+        }
+        totals.set(0, totals.get(0) + total);
+        List<Object> result = new ArrayList<Object>(totals.size());
+        for (Double element : totals) {
+            result.add(numberValue(element));
+        }
+        return result;
+    }
+
+    private static Map<String,Object> stats(List<Object> values) {
+        double sum = 0, sumsqr = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        long count = 0;
+        for (Object value : values) {
+            if(!(value instanceof Number)) {
+                Log.w(TDDatabase.TAG, "Warning non-numeric value found in _stats: " + value);
+                continue;
+            }
+            double number = ((Number)value).doubleValue();
+            sum += number;
+            sumsqr += number * number;
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+            count++;
+        }
+        return statsResult(sum, count, min, max, sumsqr);
+    }
+
+    private static Map<String,Object> combineStats(List<Object> values) {
+        double sum = 0, sumsqr = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        long count = 0;
+        for (Object value : values) {
+            if(!(value instanceof Map)) {
+                continue;
+            }
+            Map<?,?> stats = (Map<?,?>)value;
+            if(!(stats.get("count") instanceof Number) || ((Number)stats.get("count")).longValue() == 0) {
+                continue;
+            }
+            sum += ((Number)stats.get("sum")).doubleValue();
+            sumsqr += ((Number)stats.get("sumsqr")).doubleValue();
+            min = Math.min(min, ((Number)stats.get("min")).doubleValue());
+            max = Math.max(max, ((Number)stats.get("max")).doubleValue());
+            count += ((Number)stats.get("count")).longValue();
+        }
+        return statsResult(sum, count, min, max, sumsqr);
+    }
+
+    private static Map<String,Object> statsResult(double sum, long count, double min, double max, double sumsqr) {
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put("sum", numberValue(sum));
+        result.put("count", count);
+        result.put("min", numberValue(count > 0 ? min : 0));
+        result.put("max", numberValue(count > 0 ? max : 0));
+        result.put("sumsqr", numberValue(sumsqr));
+        return result;
+    }
+
+    /**
+     * Returns a whole number as a Long, so that it's written to JSON without a decimal point
+     * (as CouchDB, calculating in JavaScript, would write it), and any other number as a Double.
+     */
+    static Number numberValue(double number) {
+        if(number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.valueOf((long)number);
+        }
+        return Double.valueOf(number);
+    }
+
+}
@@ -1,19 +1,133 @@
 package com.couchbase.touchdb;
 
+import java.text.CollationKey;
 import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 import android.database.sqlite.SQLiteDatabase;
 
 public class TDCollateJSON {
 
+    /**
+     * Number of strings whose collation keys are kept, per thread, for the comparisons that the
+     * native collator can't do itself. Range queries and index insertions compare one string with
+     * many others in a row, so recent strings are likely to come up again.
+     */
+    public static final int COLLATION_KEY_CACHE_SIZE = 100;
+
+    // Strings some locales order differently, and whose collation keys an ICU update may change,
+    // identifying the order of a collator (see getCollationVersion):
+    private static final String[] VERSION_PROBES = { "a", "A", "aa", "z", "Z", "ch", "h", "c",
+            "\u00e4", "\u00e5", "\u00e6", "\u00f6", "\u00f8", "o", "\u00df", "ss", "\u0131", "i", "I",
+            "\u00e9", "e", "\u00f1", "n", "\u0161", "s", "\u044f", "\u03b1", "\u65e5\u672c", "\ud55c",
+            "1", "10", "-", " ", "_" };
+
+    // Collators aren't thread-safe, and SQLite collates on whichever thread uses the database:
+    private static final ThreadLocal<LocaleCollator> collators = new ThreadLocal<LocaleCollator>();
+
+    private static final ThreadLocal<Map<String, CollationKey>> collationKeys = new ThreadLocal<Map<String, CollationKey>>() {
+        @Override
+        protected Map<String, CollationKey> initialValue() {
+            return new LinkedHashMap<String, CollationKey>(COLLATION_KEY_CACHE_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CollationKey> eldest) {
+                    return size() > COLLATION_KEY_CACHE_SIZE;
+                }
+            };
+        }
+    };
+
     public static void registerCustomCollators(SQLiteDatabase database) {
         nativeRegisterCustomCollators(database);
     }
 
     public static int compareStringsUnicode(String a, String b) {
-        Collator c = Collator.getInstance();
-        int res = c.compare(a, b);
-        return res;
+        return getCollationKey(a).compareTo(getCollationKey(b));
+    }
+
+    /**
+     * Does this thread's collator (that of the default locale) order strings as the root,
+     * locale-independent, collation does? The native collator only compares strings of plain
+     * ASCII letters, digits and spaces itself if so, as it knows their root order, which a
+     * locale can tailor: Danish sorts "aa" after "z", Czech "ch" after "h", and so on.
+     * Called from native code when the library is loaded and when collators are registered.
+     */
+    public static boolean isRootCollation() {
+        Collator collator = getCollator();
+        Collator root = Collator.getInstance(new Locale(""));
+        return collator instanceof RuleBasedCollator && root instanceof RuleBasedCollator
+                && collator.getStrength() == root.getStrength()
+                && ((RuleBasedCollator)collator).getRules().equals(((RuleBasedCollator)root).getRules());
+    }
+
+    /**
+     * Returns this thread's instance of the collator used for Unicode collation of strings.
+     */
+    static Collator getCollator() {
+        return getLocaleCollator().collator;
+    }
+
+    /**
+     * Returns a string identifying the order of this thread's collator: its locale and a checksum
+     * of the collation keys it gives some strings. The collation keys stored in view indexes are
+     * only comparable with ones made while this is the same; it changes when the default locale
+     * does, and when an update of ICU changes the collation or its keys.
+     */
+    public static String getCollationVersion() {
+        LocaleCollator localeCollator = getLocaleCollator();
+        if(localeCollator.version == null) {
+            CRC32 checksum = new CRC32();
+            for (String probe : VERSION_PROBES) {
+                checksum.update(localeCollator.collator.getCollationKey(probe).toByteArray());
+            }
+            localeCollator.version = localeCollator.locale + "/" + Long.toHexString(checksum.getValue());
+        }
+        return localeCollator.version;
+    }
+
+    /**
+     * Returns this thread's collator, making a new one if the default locale has changed since.
+     */
+    private static LocaleCollator getLocaleCollator() {
+        LocaleCollator localeCollator = collators.get();
+        Locale locale = Locale.getDefault();
+        if(localeCollator == null || !localeCollator.locale.equals(locale)) {
+            localeCollator = new LocaleCollator(locale);
+            collators.set(localeCollator);
+            collationKeys.get().clear();
+        }
+        return localeCollator;
+    }
+
+    private static CollationKey getCollationKey(String string) {
+        Collator collator = getCollator();
+        Map<String, CollationKey> cache = collationKeys.get();
+        CollationKey key = cache.get(string);
+        if(key == null) {
+            key = collator.getCollationKey(string);
+            cache.put(string, key);
+        }
+        return key;
+    }
+
+    /**
+     * A collator, with the locale it collates for and (once computed) its collation version.
+     */
+    private static class LocaleCollator {
+        final Locale locale;
+        final Collator collator;
+        String version;
+
+        LocaleCollator(Locale locale) {
+            this.locale = locale;
+            this.collator = Collator.getInstance(locale);
+        }
     }
 
     private static native void nativeRegisterCustomCollators(SQLiteDatabase database);
@@ -39,12 +39,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
 import com.couchbase.touchdb.TDDatabase.TDContentOptions;
+import com.couchbase.touchdb.TDDocumentReader.StreamedAttachment;
 import com.couchbase.touchdb.replicator.TDPuller;
 import com.couchbase.touchdb.replicator.TDPusher;
 import com.couchbase.touchdb.replicator.TDReplicator;
 import com.couchbase.touchdb.support.Base64;
 import com.couchbase.touchdb.support.DirUtils;
+import com.couchbase.touchdb.support.GzipUtils;
 
 /**
  * A TouchDB database.
@@ -55,20 +58,28 @@ public class TDDatabase extends Observable {
     private String name;
     private SQLiteDatabase database;
     private boolean open = false;
-    private int transactionLevel = 0;
+    private volatile int transactionLevel = 0;   // only changed while holding SQLite's transaction lock
     public static final String TAG = "TDDatabase";
 
+    /**
+     * Most sequences getAttachmentsDictsForSequences lists in one query, keeping its SQL well
+     * within SQLite's limit on the length of a statement.
+     */
+    public static final int MAX_SEQUENCES_PER_QUERY = 500;
+
     private Map<String, TDView> views;
     private Map<String, TDFilterBlock> filters;
     private Map<String, TDValidationBlock> validations;
     private List<TDReplicator> activeReplicators;
     private TDBlobStore attachments;
+    private TDBlobStore sharedAttachmentStore;
 
     /**
      * Options for what metadata to include in document bodies
      */
     public enum TDContentOptions {
-        TDIncludeAttachments, TDIncludeConflicts, TDIncludeRevs, TDIncludeRevsInfo, TDIncludeLocalSeq
+        TDIncludeAttachments, TDIncludeConflicts, TDIncludeRevs, TDIncludeRevsInfo, TDIncludeLocalSeq, TDLeaveAttachmentsEncoded,
+        TDStreamAttachments  // attachment "data" is a TDStreamedAttachmentData, encoded only when serialized
     }
 
     private static final Set<String> KNOWN_SPECIAL_KEYS;
@@ -263,10 +274,141 @@ public class TDDatabase extends Observable {
                 database.close();
                 return false;
             }
+            dbVersion = 4;
+        }
+
+        if (dbVersion < 5) {
+            // Version 5: added blobs table for attachments small enough to store inline
+            String upgradeSql = "CREATE TABLE blobs ( " +
+                    "key BLOB PRIMARY KEY, " +
+                    "content BLOB NOT NULL); " +
+                    "PRAGMA user_version = 5";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 5;
+        }
+
+        if (dbVersion < 6) {
+            // Version 6: added encoding columns for gzip-compressed attachments
+            String upgradeSql = "ALTER TABLE attachments ADD COLUMN encoding INTEGER DEFAULT 0; " +
+                    "ALTER TABLE blobs ADD COLUMN encoding INTEGER DEFAULT 0; " +
+                    "PRAGMA user_version = 6";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 6;
+        }
+
+        if (dbVersion < 7) {
+            // Version 7: revisions share attachment sets; attachments.sequence is now a set ID
+            String upgradeSql = "ALTER TABLE revs ADD COLUMN attachment_set INTEGER; " +
+                    "UPDATE revs SET attachment_set=sequence WHERE sequence IN (SELECT sequence FROM attachments); " +
+                    "PRAGMA user_version = 7";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 7;
+        }
+
+        if (dbVersion < 8) {
+            // Version 8: added blob_chunks table, the manifests of blobs stored in chunks
+            String upgradeSql = "CREATE TABLE blob_chunks ( " +
+                    "key BLOB NOT NULL, " +
+                    "chunk INTEGER NOT NULL, " +
+                    "chunk_key BLOB NOT NULL, " +
+                    "PRIMARY KEY (key, chunk)); " +
+                    "PRAGMA user_version = 8";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 8;
+        }
+
+        if (dbVersion < 9) {
+            // Version 9: added reductions table, the persisted partial reductions of views' map rows
+            String upgradeSql = "CREATE TABLE reductions ( " +
+                    "view_id INTEGER NOT NULL REFERENCES views(view_id) ON DELETE CASCADE, " +
+                    "block INTEGER NOT NULL, " +
+                    "value TEXT, " +
+                    "PRIMARY KEY (view_id, block)); " +
+                    "CREATE INDEX maps_sequence ON maps(view_id, sequence); " +
+                    "PRAGMA user_version = 9";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 9;
+        }
+
+        if (dbVersion < 10) {
+            // Version 10: added maps.sort_key, the binary collation key of a row's key, indexed
+            // instead of the key itself; existing indexes are rebuilt to fill it in
+            String upgradeSql = "ALTER TABLE maps ADD COLUMN sort_key BLOB; " +
+                    "DROP INDEX maps_keys; " +
+                    "CREATE INDEX maps_sort_keys ON maps(view_id, sort_key); " +
+                    "DELETE FROM maps; " +
+                    "DELETE FROM reductions; " +
+                    "UPDATE views SET lastSequence=0; " +
+                    "PRAGMA user_version = 10";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 10;
+        }
+
+        if (dbVersion < 11) {
+            // Version 11: added views.collation, the collation the view's sort keys were made in
+            String upgradeSql = "ALTER TABLE views ADD COLUMN collation INTEGER DEFAULT 0; " +
+                    "PRAGMA user_version = 11";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 11;
+        }
+
+        if (dbVersion < 12) {
+            // Version 12: added maps.docid, which orders rows with equal keys and is indexed after
+            // the sort key; existing indexes are rebuilt to fill it in
+            String upgradeSql = "ALTER TABLE maps ADD COLUMN docid TEXT; " +
+                    "DROP INDEX maps_sort_keys; " +
+                    "CREATE INDEX maps_sort_keys ON maps(view_id, sort_key, docid); " +
+                    "DELETE FROM maps; " +
+                    "DELETE FROM reductions; " +
+                    "UPDATE views SET lastSequence=0; " +
+                    "PRAGMA user_version = 12";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 12;
+        }
+
+        if (dbVersion < 13) {
+            // Version 13: added views.collation_version, the version of the Unicode collator the
+            // view's sort keys were made by (see TDCollateJSON.getCollationVersion)
+            String upgradeSql = "ALTER TABLE views ADD COLUMN collation_version TEXT; " +
+                    "PRAGMA user_version = 13";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 13;
         }
 
         try {
-            attachments = new TDBlobStore(getAttachmentStorePath());
+            if(sharedAttachmentStore != null) {
+                attachments = sharedAttachmentStore.storeForDatabase(name);
+                moveAttachmentsToSharedStore();
+            } else {
+                attachments = new TDBlobStore(getAttachmentStorePath(), database);
+            }
         } catch (IllegalArgumentException e) {
             Log.e(TDDatabase.TAG, "Could not initialize attachment store", e);
             database.close();
@@ -277,17 +419,54 @@ public class TDDatabase extends Observable {
         return true;
     }
 
+    /**
+     * Moves any attachments this database stored in its own attachment store, from before it used
+     * a shared one, into the shared store.
+     */
+    private void moveAttachmentsToSharedStore() {
+        File ownStoreDir = new File(getAttachmentStorePath());
+        if(!ownStoreDir.exists()) {
+            return;
+        }
+        TDBlobStore ownStore = new TDBlobStore(getAttachmentStorePath(), database);
+        if(!attachments.importBlobs(ownStore)) {
+            Log.w(TDDatabase.TAG, "Couldn't move attachments to the shared store; will retry on next open");
+            return;
+        }
+        try {
+            database.execSQL("DELETE FROM blobs");
+            database.execSQL("DELETE FROM blob_chunks");
+        } catch (SQLException e) {
+            Log.w(TDDatabase.TAG, "Error deleting moved inline attachments", e);
+        }
+        DirUtils.deleteRecursive(ownStoreDir);
+    }
+
+    /**
+     * Makes this database keep its attachments in a store shared with other databases (see
+     * TDBlobStore.openSharedStore) instead of a store of its own. Must be called before open().
+     */
+    public void setSharedAttachmentStore(TDBlobStore sharedAttachmentStore) {
+        this.sharedAttachmentStore = sharedAttachmentStore;
+    }
+
     public boolean close() {
         if(!open) {
             return false;
         }
 
-        if(views != null) {
-            for (TDView view : views.values()) {
-                view.databaseClosing();
-            }
+        // Stop the views (and their background indexers) while the database is still usable;
+        // not while holding the lock, as an indexer may need it to finish its current batch:
+        List<TDView> openViews;
+        synchronized(this) {
+            openViews = (views != null) ? new ArrayList<TDView>(views.values()) : new ArrayList<TDView>();
+        }
+        for (TDView view : openViews) {
+            view.databaseClosing();
+        }
+        synchronized(this) {
+            views = null;
         }
-        views = null;
 
         if(activeReplicators != null) {
             Iterator<TDReplicator> iter = activeReplicators.iterator();
@@ -298,6 +477,10 @@ public class TDDatabase extends Observable {
             }
         }
 
+        if(attachments != null) {
+            attachments.syncPendingFiles();
+        }
+
         if(database != null && database.isOpen()) {
             database.close();
         }
@@ -318,6 +501,11 @@ public class TDDatabase extends Observable {
         File file = new File(path);
         File attachmentsFile = new File(getAttachmentStorePath());
 
+        if(sharedAttachmentStore != null) {
+            // Drop all of this database's references, deleting the blobs only it used:
+            sharedAttachmentStore.storeForDatabase(name).deleteBlobsExceptWithKeys(new ArrayList<TDBlobKey>());
+        }
+
         boolean deleteStatus = file.delete();
         //recursively delete attachments path
         boolean deleteAttachmentStatus = DirUtils.deleteRecursive(attachmentsFile);
@@ -348,7 +536,7 @@ public class TDDatabase extends Observable {
 
     public long totalDataSize() {
         File f = new File(path);
-        long size = f.length() + attachments.totalDataSize();
+        long size = f.length() + attachments.totalFileDataSize();
         return size;
     }
 
@@ -369,19 +557,32 @@ public class TDDatabase extends Observable {
 
     /**
      * Commits or aborts (rolls back) a transaction.
+     * Before the outermost transaction commits, any attachment files whose sync was deferred are
+     * synced; if that fails the transaction is rolled back instead.
      *
      * @param commit If true, commits; if false, aborts and rolls back, undoing all changes made since the matching -beginTransaction call, *including* any committed nested transactions.
      */
     public boolean endTransaction(boolean commit) {
         assert(transactionLevel > 0);
 
+        boolean result = true;
+        if(commit && transactionLevel == 1 && !attachments.syncPendingFiles()) {
+            Log.e(TAG, "Unable to sync attachments; rolling back transaction");
+            commit = false;
+            result = false;
+        }
+
+        // Decrement the level before ending the transaction, while this thread still holds the
+        // database; another thread may begin a transaction as soon as it's released.
         if(commit) {
             Log.v(TAG, "Committing transaction (level " + Integer.toString(transactionLevel) + ")...");
+            --transactionLevel;
             database.setTransactionSuccessful();
             database.endTransaction();
         }
         else {
             Log.v(TAG, "CANCEL transaction (level " + Integer.toString(transactionLevel) + ")...");
+            --transactionLevel;
             try {
                 database.endTransaction();
             } catch (SQLException e) {
@@ -389,8 +590,7 @@ public class TDDatabase extends Observable {
             }
         }
 
-        --transactionLevel;
-        return true;
+        return result;
     }
 
     /**
@@ -530,6 +730,16 @@ public class TDDatabase extends Observable {
     /** Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
     Rev must already have its revID and sequence properties set. */
     public Map<String,Object> extraPropertiesForRevision(TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
+        // Get attachment metadata, and optionally the contents:
+        Map<String, Object> attachmentsDict = getAttachmentsDictForSequenceWithContent(rev.getSequence(), contentOptions);
+        return extraPropertiesForRevision(rev, contentOptions, attachmentsDict);
+    }
+
+    /**
+     * Like extraPropertiesForRevision(rev, contentOptions), but with the revision's "_attachments"
+     * dictionary (or null if it has none) already loaded, as by getAttachmentsDictsForSequences.
+     */
+    public Map<String,Object> extraPropertiesForRevision(TDRevision rev, EnumSet<TDContentOptions> contentOptions, Map<String,Object> attachmentsDict) {
 
         String docId = rev.getDocId();
         String revId = rev.getRevId();
@@ -537,10 +747,6 @@ public class TDDatabase extends Observable {
         assert(revId != null);
         assert(sequenceNumber > 0);
 
-        // Get attachment metadata, and optionally the contents:
-        boolean withAttachments = contentOptions.contains(TDContentOptions.TDIncludeAttachments);
-        Map<String, Object> attachmentsDict = getAttachmentsDictForSequenceWithContent(sequenceNumber, withAttachments);
-
         // Get more optional stuff to put in the properties:
         //OPT: This probably ends up making redundant SQL queries if multiple options are enabled.
         Long localSeq = null;
@@ -620,12 +826,22 @@ public class TDDatabase extends Observable {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, long sequence, EnumSet<TDContentOptions> contentOptions) {
+        Map<String, Object> attachmentsDict = getAttachmentsDictForSequenceWithContent(sequence, contentOptions);
+        return documentPropertiesFromJSON(json, docId, revId, sequence, contentOptions, attachmentsDict);
+    }
+
+    /**
+     * Like documentPropertiesFromJSON(json, docId, revId, sequence, contentOptions), but with the
+     * revision's "_attachments" dictionary (or null) already loaded, so that the documents of many
+     * rows can share one attachments query.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, long sequence, EnumSet<TDContentOptions> contentOptions, Map<String,Object> attachmentsDict) {
 
         TDRevision rev = new TDRevision(docId, revId, false);
         rev.setSequence(sequence);
-        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions, attachmentsDict);
         if(json == null) {
             return extra;
         }
@@ -1047,7 +1263,7 @@ public class TDDatabase extends Observable {
 
     /** VIEWS: **/
 
-    public TDView registerView(TDView view) {
+    public synchronized TDView registerView(TDView view) {
         if(view == null) {
             return null;
         }
@@ -1058,7 +1274,7 @@ public class TDDatabase extends Observable {
         return view;
     }
 
-    public TDView getViewNamed(String name) {
+    public synchronized TDView getViewNamed(String name) {
         TDView view = null;
         if(views != null) {
             view = views.get(name);
@@ -1069,7 +1285,7 @@ public class TDDatabase extends Observable {
         return registerView(new TDView(this, name));
     }
 
-    public TDView getExistingViewNamed(String name) {
+    public synchronized TDView getExistingViewNamed(String name) {
         TDView view = null;
         if(views != null) {
             view = views.get(name);
@@ -1203,6 +1419,11 @@ public class TDDatabase extends Observable {
 
             cursor.moveToFirst();
             rows = new ArrayList<Map<String,Object>>();
+            // The documents are filled in after the rows are read, to load their attachments at once:
+            List<Map<String,Object>> rowsToFill = new ArrayList<Map<String,Object>>();
+            List<String> revIdsToFill = new ArrayList<String>();
+            List<byte[]> jsonsToFill = new ArrayList<byte[]>();
+            List<Long> sequencesToFill = new ArrayList<Long>();
             while(!cursor.isAfterLast()) {
                 long docNumericID = cursor.getLong(0);
                 if(docNumericID == lastDocID) {
@@ -1213,13 +1434,7 @@ public class TDDatabase extends Observable {
 
                 String docId = cursor.getString(1);
                 String revId = cursor.getString(2);
-                Map<String, Object> docContents = null;
                 boolean deleted = cursor.getInt(3) > 0;
-                if(options.isIncludeDocs() && !deleted) {
-                    byte[] json = cursor.getBlob(4);
-                    long sequence = cursor.getLong(5);
-                    docContents = documentPropertiesFromJSON(json, docId, revId, sequence, options.getContentOptions());
-                }
 
                 Map<String,Object> valueMap = new HashMap<String,Object>();
                 valueMap.put("rev", revId);
@@ -1228,17 +1443,34 @@ public class TDDatabase extends Observable {
                 change.put("id", docId);
                 change.put("key", docId);
                 change.put("value", valueMap);
-                if(docContents != null) {
-                    change.put("doc", docContents);
-                }
                 if(deleted) {
                     change.put("deleted", true);
                 }
+                if(options.isIncludeDocs() && !deleted) {
+                    rowsToFill.add(change);
+                    revIdsToFill.add(revId);
+                    jsonsToFill.add(cursor.getBlob(4));
+                    sequencesToFill.add(cursor.getLong(5));
+                }
 
                 rows.add(change);
 
                 cursor.moveToNext();
             }
+
+            if(rowsToFill.size() > 0) {
+                EnumSet<TDContentOptions> contentOptions = options.getContentOptions();
+                Map<Long,Map<String,Object>> attachmentsDicts = getAttachmentsDictsForSequences(sequencesToFill, contentOptions);
+                for(int i = 0; i < rowsToFill.size(); i++) {
+                    Map<String,Object> change = rowsToFill.get(i);
+                    Long sequence = sequencesToFill.get(i);
+                    Map<String,Object> docContents = documentPropertiesFromJSON(jsonsToFill.get(i), (String)change.get("id"),
+                            revIdsToFill.get(i), sequence, contentOptions, attachmentsDicts.get(sequence));
+                    if(docContents != null) {
+                        change.put("doc", docContents);
+                    }
+                }
+            }
         } catch (SQLException e) {
             Log.e(TDDatabase.TAG, "Error getting all docs", e);
             return null;
@@ -1269,25 +1501,88 @@ public class TDDatabase extends Observable {
     /*** TDDatabase+Attachments                                                                    ***/
     /*************************************************************************************************/
 
+    /*
+     * Attachment rows are grouped into sets, which revisions share until one of them changes its
+     * attachments. attachments.sequence is the ID of the set a row belongs to, which is the sequence
+     * of the revision that created the set; revs.attachment_set is the set a revision uses.
+     */
+
+    /**
+     * Returns the ID of the attachment set used by a revision, or 0 if it has none.
+     */
+    private long attachmentSetForSequence(long sequence) throws SQLException {
+        if(sequence <= 0) {
+            return 0;
+        }
+        Cursor cursor = null;
+        String[] args = { Long.toString(sequence) };
+        try {
+            cursor = database.rawQuery("SELECT attachment_set FROM revs WHERE sequence=?", args);
+            if(!cursor.moveToFirst() || cursor.isNull(0)) {
+                return 0;
+            }
+            return cursor.getLong(0);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void setAttachmentSetForSequence(long sequence, long attachmentSet) throws SQLException {
+        ContentValues args = new ContentValues();
+        args.put("attachment_set", attachmentSet);
+        String[] whereArgs = { Long.toString(sequence) };
+        database.update("revs", args, "sequence=?", whereArgs);
+    }
+
+    /**
+     * Gives a revision an attachment set of its own that can be modified without affecting other
+     * revisions, copying the rows of the set it shared (if any). Returns the set's ID.
+     */
+    private long ownAttachmentSetForSequence(long sequence) throws SQLException {
+        long attachmentSet = attachmentSetForSequence(sequence);
+        if(attachmentSet != sequence) {
+            if(attachmentSet > 0) {
+                String[] args = { Long.toString(sequence), Long.toString(attachmentSet) };
+                database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos, encoding) " +
+                        "SELECT ?, filename, key, type, length, revpos, encoding FROM attachments WHERE sequence=?", args);
+            }
+            setAttachmentSetForSequence(sequence, sequence);
+        }
+        return sequence;
+    }
+
     public TDStatus insertAttachmentForSequenceWithNameAndType(byte[] contents, long sequence, String name, String contentType, int revpos) {
         assert(contents != null);
         assert(sequence > 0);
         assert(name != null);
 
         TDBlobKey key = new TDBlobKey();
-        if(!attachments.storeBlob(contents, key)) {
+        TDAttachmentEncoding encoding = attachments.storeBlob(contents, contentType, key);
+        if(encoding == null) {
             return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         }
+        return insertAttachmentForSequenceWithKey(key, encoding, contents.length, sequence, name, contentType, revpos);
+    }
+
+    /**
+     * Adds an attachment row for a blob that's already in the blob store.
+     */
+    public TDStatus insertAttachmentForSequenceWithKey(TDBlobKey key, TDAttachmentEncoding encoding, long length, long sequence, String name, String contentType, int revpos) {
+        assert(sequence > 0);
+        assert(name != null);
 
         byte[] keyData = key.getBytes();
         try {
             ContentValues args = new ContentValues();
-            args.put("sequence", sequence);
+            args.put("sequence", ownAttachmentSetForSequence(sequence));
             args.put("filename", name);
             args.put("key", keyData);
             args.put("type", contentType);
-            args.put("length", contents.length);
+            args.put("length", length);
             args.put("revpos", revpos);
+            args.put("encoding", encoding.ordinal());
             database.insert("attachments", null, args);
             return new TDStatus(TDStatus.CREATED);
         } catch (SQLException e) {
@@ -1305,10 +1600,11 @@ public class TDDatabase extends Observable {
 
         Cursor cursor = null;
 
-        String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
         try {
-            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
-                                      "SELECT ?, ?, key, type, length, revpos FROM attachments " +
+            long toSet = ownAttachmentSetForSequence(toSeq);
+            String[] args = { Long.toString(toSet), name, Long.toString(attachmentSetForSequence(fromSeq)), name };
+            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos, encoding) " +
+                                      "SELECT ?, ?, key, type, length, revpos, encoding FROM attachments " +
                                         "WHERE sequence=? AND filename=?", args);
             cursor = database.rawQuery("SELECT changes()", null);
             cursor.moveToFirst();
@@ -1336,6 +1632,14 @@ public class TDDatabase extends Observable {
      * Returns the content and MIME type of an attachment
      */
     public TDAttachment getAttachmentForSequence(long sequence, String filename, TDStatus status) {
+        return getAttachmentForSequence(sequence, filename, false, status);
+    }
+
+    /**
+     * Returns the content and MIME type of an attachment. If leaveEncoded is true, an attachment
+     * stored gzipped is returned without being decompressed, as indicated by its encoding.
+     */
+    public TDAttachment getAttachmentForSequence(long sequence, String filename, boolean leaveEncoded, TDStatus status) {
         assert(sequence > 0);
         assert(filename != null);
 
@@ -1344,7 +1648,8 @@ public class TDDatabase extends Observable {
 
         String[] args = { Long.toString(sequence), filename };
         try {
-            cursor = database.rawQuery("SELECT key, type FROM attachments WHERE sequence=? AND filename=?", args);
+            cursor = database.rawQuery("SELECT key, type, encoding FROM attachments " +
+                    "WHERE sequence=(SELECT attachment_set FROM revs WHERE sequence=?) AND filename=?", args);
 
             if(!cursor.moveToFirst()) {
                 status.setCode(TDStatus.NOT_FOUND);
@@ -1354,7 +1659,11 @@ public class TDDatabase extends Observable {
             byte[] keyData = cursor.getBlob(0);
             //TODO add checks on key here? (ios version)
             TDBlobKey key = new TDBlobKey(keyData);
-            byte[] contents = attachments.blobForKey(key);
+            TDAttachmentEncoding encoding = TDAttachmentEncoding.values()[cursor.getInt(2)];
+            if(!leaveEncoded) {
+                encoding = TDAttachmentEncoding.TDAttachmentEncodingNone;
+            }
+            byte[] contents = attachments.blobForKey(key, !leaveEncoded);
             if(contents == null) {
                 Log.e(TDDatabase.TAG, "Failed to load attachment");
                 status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
@@ -1365,6 +1674,7 @@ public class TDDatabase extends Observable {
                 TDAttachment result = new TDAttachment();
                 result.setData(contents);
                 result.setContentType(cursor.getString(1));
+                result.setEncoding(encoding);
                 return result;
             }
 
@@ -1384,13 +1694,37 @@ public class TDDatabase extends Observable {
      * Constructs an "_attachments" dictionary for a revision, to be inserted in its JSON body.
      */
     public Map<String,Object> getAttachmentsDictForSequenceWithContent(long sequence, boolean withContent) {
+        return getAttachmentsDictForSequenceWithContent(sequence, withContent, false);
+    }
+
+    /**
+     * Constructs an "_attachments" dictionary for a revision. If leaveEncoded is true, the data of
+     * gzipped attachments is left compressed and marked with "encoding":"gzip".
+     */
+    public Map<String,Object> getAttachmentsDictForSequenceWithContent(long sequence, boolean withContent, boolean leaveEncoded) {
+        EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(TDContentOptions.class);
+        if(withContent) {
+            contentOptions.add(TDContentOptions.TDIncludeAttachments);
+        }
+        if(leaveEncoded) {
+            contentOptions.add(TDContentOptions.TDLeaveAttachmentsEncoded);
+        }
+        return getAttachmentsDictForSequenceWithContent(sequence, contentOptions);
+    }
+
+    /**
+     * Constructs an "_attachments" dictionary for a revision, honoring the attachment-related
+     * content options (TDIncludeAttachments, TDLeaveAttachmentsEncoded, TDStreamAttachments).
+     */
+    public Map<String,Object> getAttachmentsDictForSequenceWithContent(long sequence, EnumSet<TDContentOptions> contentOptions) {
         assert(sequence > 0);
 
         Cursor cursor = null;
 
         String args[] = { Long.toString(sequence) };
         try {
-            cursor = database.rawQuery("SELECT filename, key, type, length, revpos FROM attachments WHERE sequence=?", args);
+            cursor = database.rawQuery("SELECT filename, key, type, length, revpos, encoding FROM attachments " +
+                    "WHERE sequence=(SELECT attachment_set FROM revs WHERE sequence=?)", args);
 
             if(!cursor.moveToFirst()) {
                 return null;
@@ -1399,35 +1733,7 @@ public class TDDatabase extends Observable {
             Map<String, Object> result = new HashMap<String, Object>();
 
             while(!cursor.isAfterLast()) {
-
-                byte[] keyData = cursor.getBlob(1);
-                TDBlobKey key = new TDBlobKey(keyData);
-                String digestString = "sha1-" + Base64.encodeBytes(keyData);
-                String dataBase64 = null;
-                if(withContent) {
-                    byte[] data = attachments.blobForKey(key);
-                    if(data != null) {
-                        dataBase64 = Base64.encodeBytes(data);
-                    }
-                    else {
-                        Log.w(TDDatabase.TAG, "Error loading attachment");
-                    }
-                }
-
-                Map<String, Object> attachment = new HashMap<String, Object>();
-                if(dataBase64 == null) {
-                    attachment.put("stub", true);
-                }
-                else {
-                    attachment.put("data", dataBase64);
-                }
-                attachment.put("digest", digestString);
-                attachment.put("content_type", cursor.getString(2));
-                attachment.put("length", cursor.getInt(3));
-                attachment.put("revpos", cursor.getInt(4));
-
-                result.put(cursor.getString(0), attachment);
-
+                result.put(cursor.getString(0), attachmentFromCursor(cursor, 1, contentOptions));
                 cursor.moveToNext();
             }
 
@@ -1443,6 +1749,106 @@ public class TDDatabase extends Observable {
         }
     }
 
+    /**
+     * Constructs the "_attachments" dictionaries of many revisions with a query per
+     * MAX_SEQUENCES_PER_QUERY sequences, as getAttachmentsDictForSequenceWithContent does for one.
+     * The result maps each sequence to its dictionary; revisions without attachments are left out
+     * of it.
+     * @throws SQLException if a query fails, rather than returning an incomplete result
+     */
+    public Map<Long,Map<String,Object>> getAttachmentsDictsForSequences(List<Long> sequences, EnumSet<TDContentOptions> contentOptions) {
+        Map<Long,Map<String,Object>> result = new HashMap<Long,Map<String,Object>>();
+        for(int start = 0; start < sequences.size(); start += MAX_SEQUENCES_PER_QUERY) {
+            int end = Math.min(start + MAX_SEQUENCES_PER_QUERY, sequences.size());
+            addAttachmentsDictsForSequences(sequences.subList(start, end), contentOptions, result);
+        }
+        return result;
+    }
+
+    private void addAttachmentsDictsForSequences(List<Long> sequences, EnumSet<TDContentOptions> contentOptions, Map<Long,Map<String,Object>> result) {
+        // Sequences are numbers, so they're safe to put in the SQL:
+        StringBuilder sql = new StringBuilder("SELECT revs.sequence, filename, key, type, length, revpos, encoding "
+                + "FROM revs, attachments WHERE revs.sequence IN (");
+        for(int i = 0; i < sequences.size(); i++) {
+            if(i > 0) {
+                sql.append(",");
+            }
+            sql.append(sequences.get(i).longValue());
+        }
+        sql.append(") AND attachments.sequence=revs.attachment_set");
+
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql.toString(), null);
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()) {
+                Long sequence = cursor.getLong(0);
+                Map<String,Object> attachmentsDict = result.get(sequence);
+                if(attachmentsDict == null) {
+                    attachmentsDict = new HashMap<String,Object>();
+                    result.put(sequence, attachmentsDict);
+                }
+                attachmentsDict.put(cursor.getString(1), attachmentFromCursor(cursor, 2, contentOptions));
+                cursor.moveToNext();
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Constructs an attachment's entry in an "_attachments" dictionary from a row of the
+     * attachments table, whose key, type, length, revpos and encoding columns are at column and on.
+     */
+    private Map<String,Object> attachmentFromCursor(Cursor cursor, int column, EnumSet<TDContentOptions> contentOptions) {
+        boolean withContent = contentOptions.contains(TDContentOptions.TDIncludeAttachments);
+        boolean leaveEncoded = contentOptions.contains(TDContentOptions.TDLeaveAttachmentsEncoded);
+        boolean stream = contentOptions.contains(TDContentOptions.TDStreamAttachments);
+
+        byte[] keyData = cursor.getBlob(column);
+        TDBlobKey key = new TDBlobKey(keyData);
+        String digestString = "sha1-" + Base64.encodeBytes(keyData);
+        Object dataBase64 = null;
+        boolean encoded = leaveEncoded && cursor.getInt(column + 4) == TDAttachmentEncoding.TDAttachmentEncodingGZIP.ordinal();
+        if(withContent && stream) {
+            // Check the blob is there now, so a missing one becomes a stub as it would unstreamed
+            // rather than failing the serialization of the whole document later:
+            if(attachments.encodingForKey(key) != null) {
+                dataBase64 = new TDStreamedAttachmentData(attachments, key, !encoded);
+            }
+            else {
+                Log.w(TDDatabase.TAG, "Error loading attachment");
+            }
+        }
+        else if(withContent) {
+            byte[] data = attachments.blobForKey(key, !encoded);
+            if(data != null) {
+                dataBase64 = Base64.encodeBytes(data);
+            }
+            else {
+                Log.w(TDDatabase.TAG, "Error loading attachment");
+            }
+        }
+
+        Map<String, Object> attachment = new HashMap<String, Object>();
+        if(dataBase64 == null) {
+            attachment.put("stub", true);
+        }
+        else {
+            attachment.put("data", dataBase64);
+            if(encoded) {
+                attachment.put("encoding", "gzip");
+            }
+        }
+        attachment.put("digest", digestString);
+        attachment.put("content_type", cursor.getString(column + 1));
+        attachment.put("length", cursor.getInt(column + 2));
+        attachment.put("revpos", cursor.getInt(column + 3));
+        return attachment;
+    }
+
     /**
      * Given a newly-added revision, adds the necessary attachment rows to the database and stores inline attachments into the blob store.
      */
@@ -1461,16 +1867,98 @@ public class TDDatabase extends Observable {
             return new TDStatus(TDStatus.OK);
         }
 
+        // Stubs refer to the parent revision's attachments; any others carry new data:
+        List<String> stubNames = new ArrayList<String>();
+        for (String name : newAttachments.keySet()) {
+            Map<String,Object> newAttach = (Map<String,Object>)newAttachments.get(name);
+            if(newAttach.get("data") == null && !(newAttach.get("follows") instanceof StreamedAttachment)) {
+                stubNames.add(name);
+            }
+        }
+
+        Cursor cursor = null;
+        try {
+            long parentSet = attachmentSetForSequence(parentSequence);
+            if(stubNames.size() > 0 && parentSet == 0) {
+                return new TDStatus(TDStatus.NOT_FOUND);
+            }
+            if(stubNames.size() > 0) {
+                String inStubNames = "filename IN (" + joinQuoted(stubNames) + ")";
+                String[] args = { Long.toString(parentSet) };
+                cursor = database.rawQuery("SELECT COUNT(*), SUM(" + inStubNames + ") FROM attachments WHERE sequence=?", args);
+                cursor.moveToFirst();
+                int parentCount = cursor.getInt(0);
+                int stubCount = cursor.getInt(1);
+                cursor.close();
+                cursor = null;
+                if(stubCount < stubNames.size()) {
+                    // Oops. This means a glitch in our attachment-management or pull code,
+                    // or else a bug in the upstream server.
+                    Log.w(TDDatabase.TAG, "Can't find inherited attachments " + stubNames + " of seq# " + Long.toString(parentSequence));
+                    return new TDStatus(TDStatus.NOT_FOUND);
+                }
+                if(stubCount == newAttachments.size() && parentCount == stubCount) {
+                    // Attachments are unchanged, so just share the parent's set:
+                    setAttachmentSetForSequence(newSequence, parentSet);
+                    return new TDStatus(TDStatus.OK);
+                }
+                // Start a new set with the rows of the parent's that were kept:
+                String[] copyArgs = { Long.toString(newSequence), Long.toString(parentSet) };
+                database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos, encoding) " +
+                        "SELECT ?, filename, key, type, length, revpos, encoding FROM attachments " +
+                        "WHERE sequence=? AND " + inStubNames, copyArgs);
+            }
+            setAttachmentSetForSequence(newSequence, newSequence);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error copying attachments", e);
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        // Now add the new attachments to the revision's own set:
         for (String name : newAttachments.keySet()) {
 
             TDStatus status = new TDStatus();
             Map<String,Object> newAttach = (Map<String,Object>)newAttachments.get(name);
             String newContentBase64 = (String)newAttach.get("data");
-            if(newContentBase64 != null) {
+            Object follows = newAttach.get("follows");
+            if(newContentBase64 == null && !(follows instanceof StreamedAttachment)) {
+                continue;  // a stub; it was copied above
+            }
+
+            // Now determine the revpos, i.e. generation # this was added in. Usually this is
+            // implicit, but a rev being pulled in replication will have it set already.
+            int generation = rev.getGeneration();
+            assert(generation > 0);
+            Object revposObj = newAttach.get("revpos");
+            int revpos = generation;
+            if(revposObj != null && revposObj instanceof Integer) {
+                revpos = ((Integer)revposObj).intValue();
+            }
+
+            if(revpos > generation) {
+                return new TDStatus(TDStatus.BAD_REQUEST);
+            }
+
+            String contentType = (String)newAttach.get("content_type");
+            if(follows instanceof StreamedAttachment) {
+                // The data was already streamed into the blob store by a TDDocumentReader, which
+                // recorded the key and length of what it stored:
+                StreamedAttachment streamed = (StreamedAttachment)follows;
+                TDAttachmentEncoding encoding = attachments.encodingForKey(streamed.getBlobKey());
+                if(encoding == null) {
+                    return new TDStatus(TDStatus.BAD_REQUEST);
+                }
+                status = insertAttachmentForSequenceWithKey(streamed.getBlobKey(), encoding, streamed.getLength(), newSequence, name, contentType, revpos);
+            }
+            else {
                 // New item contains data, so insert it. First decode the data:
                 byte[] newContents;
                 try {
-                    newContents = Base64.decode(newContentBase64);
+                    newContents = Base64.decode(newContentBase64, Base64.DONT_GUNZIP);
                 } catch (IOException e) {
                     Log.e(TDDatabase.TAG, "IOExeption parsing base64", e);
                     return new TDStatus(TDStatus.BAD_REQUEST);
@@ -1478,28 +1966,17 @@ public class TDDatabase extends Observable {
                 if(newContents == null) {
                     return new TDStatus(TDStatus.BAD_REQUEST);
                 }
-
-                // Now determine the revpos, i.e. generation # this was added in. Usually this is
-                // implicit, but a rev being pulled in replication will have it set already.
-                int generation = rev.getGeneration();
-                assert(generation > 0);
-                Object revposObj = newAttach.get("revpos");
-                int revpos = generation;
-                if(revposObj != null && revposObj instanceof Integer) {
-                    revpos = ((Integer)revposObj).intValue();
-                }
-
-                if(revpos > generation) {
-                    return new TDStatus(TDStatus.BAD_REQUEST);
+                if("gzip".equals(newAttach.get("encoding"))) {
+                    // Sent compressed (e.g. by a pusher with encoded attachments); the digest is of the
+                    // decompressed data, so decode it and let the blob store recompress it if it wants.
+                    newContents = GzipUtils.decompress(newContents);
+                    if(newContents == null) {
+                        return new TDStatus(TDStatus.BAD_REQUEST);
+                    }
                 }
 
                 // Finally insert the attachment:
-                status = insertAttachmentForSequenceWithNameAndType(newContents, newSequence, name, (String)newAttach.get("content_type"), revpos);
-            }
-            else {
-                // It's just a stub, so copy the previous revision's attachment entry:
-                //? Should I enforce that the type and digest (if any) match?
-                status = copyAttachmentNamedFromSequenceToSequence(name, parentSequence, newSequence);
+                status = insertAttachmentForSequenceWithNameAndType(newContents, newSequence, name, contentType, revpos);
             }
             if(!status.isSuccessful()) {
                 return status;
@@ -1509,6 +1986,42 @@ public class TDDatabase extends Observable {
         return new TDStatus(TDStatus.OK);
     }
 
+    /**
+     * Deletes the blobs a TDDocumentReader stored for the attachments of a revision that then
+     * couldn't be added, unless an attachment of another revision uses the same contents.
+     */
+    @SuppressWarnings("unchecked")
+    private void discardStreamedAttachments(TDRevision rev) {
+        Map<String,Object> properties = rev.getProperties();
+        if(properties == null || !(properties.get("_attachments") instanceof Map)) {
+            return;
+        }
+        Map<String,Object> newAttachments = (Map<String,Object>)properties.get("_attachments");
+        for (Object newAttach : newAttachments.values()) {
+            if(!(newAttach instanceof Map)) {
+                continue;
+            }
+            Object follows = ((Map<String,Object>)newAttach).get("follows");
+            if(!(follows instanceof StreamedAttachment)) {
+                continue;
+            }
+            TDBlobKey key = ((StreamedAttachment)follows).getBlobKey();
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery("SELECT COUNT(*) FROM attachments WHERE key=X'" + TDBlobKey.convertToHex(key.getBytes()) + "'", null);
+                if(cursor.moveToFirst() && cursor.getLong(0) == 0) {
+                    attachments.deleteBlobForKey(key);
+                }
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error checking use of attachment " + key, e);
+            } finally {
+                if(cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
     /**
      * Updates or deletes an attachment, creating a new document revision in the process.
      * Used by the PUT / DELETE methods called on attachment URLs.
@@ -1556,14 +2069,17 @@ public class TDDatabase extends Observable {
                 return null;
             }
 
-            if(oldRevID != null) {
-                // Copy all attachment rows _except_ for the one being updated:
-                String[] args = { Long.toString(newRev.getSequence()), Long.toString(oldRev.getSequence()), filename };
+            // Start the new revision's own attachment set, with all of the old revision's
+            // attachments _except_ for the one being updated:
+            long oldSet = attachmentSetForSequence(oldRev.getSequence());
+            if(oldSet > 0) {
+                String[] args = { Long.toString(newRev.getSequence()), Long.toString(oldSet), filename };
                 database.execSQL("INSERT INTO attachments "
-                        + "(sequence, filename, key, type, length, revpos) "
-                        + "SELECT ?, filename, key, type, length, revpos FROM attachments "
+                        + "(sequence, filename, key, type, length, revpos, encoding) "
+                        + "SELECT ?, filename, key, type, length, revpos, encoding FROM attachments "
                         + "WHERE sequence=? AND filename != ?", args);
             }
+            setAttachmentSetForSequence(newRev.getSequence(), newRev.getSequence());
 
             if(body != null) {
                 // If not deleting, add a new attachment entry:
@@ -1592,12 +2108,14 @@ public class TDDatabase extends Observable {
      * Deletes obsolete attachments from the database and blob store.
      */
     public TDStatus garbageCollectAttachments() {
-        // First delete attachment rows for already-cleared revisions:
+        // First release the attachment sets of already-cleared revisions, then delete the rows of
+        // sets no longer used by any revision:
         // OPT: Could start after last sequence# we GC'd up to
 
         try {
-            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
-                            "(SELECT sequence from revs WHERE json IS null)");
+            database.execSQL("UPDATE revs SET attachment_set=NULL WHERE json IS null AND attachment_set IS NOT NULL");
+            database.execSQL("DELETE FROM attachments WHERE sequence NOT IN " +
+                            "(SELECT attachment_set FROM revs WHERE attachment_set IS NOT NULL)");
         }
         catch(SQLException e) {
             Log.e(TDDatabase.TAG, "Error deleting attachments", e);
@@ -1794,6 +2312,7 @@ public class TDDatabase extends Observable {
         if((rev == null) || ((prevRevId != null) && (docId == null)) || (deleted && (docId == null))
                 || ((docId != null) && !isValidDocumentId(docId))) {
             resultStatus.setCode(TDStatus.BAD_REQUEST);
+            discardStreamedAttachments(rev);
             return null;
         }
 
@@ -1951,6 +2470,9 @@ public class TDDatabase extends Observable {
                 cursor.close();
             }
             endTransaction(resultStatus.isSuccessful());
+            if(!resultStatus.isSuccessful()) {
+                discardStreamedAttachments(rev);
+            }
         }
 
         // Send a change notification:
@@ -1969,6 +2491,7 @@ public class TDDatabase extends Observable {
         String docId = rev.getDocId();
         String revId = rev.getRevId();
         if(!isValidDocumentId(docId) || (revId == null)) {
+            discardStreamedAttachments(rev);
             return new TDStatus(TDStatus.BAD_REQUEST);
         }
 
@@ -1978,6 +2501,7 @@ public class TDDatabase extends Observable {
             revHistory.add(revId);
             historyCount = 1;
         } else if(!revHistory.get(0).equals(rev.getRevId())) {
+            discardStreamedAttachments(rev);
             return new TDStatus(TDStatus.BAD_REQUEST);
         }
 
@@ -2061,6 +2585,9 @@ public class TDDatabase extends Observable {
             return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         } finally {
             endTransaction(success);
+            if(!success) {
+                discardStreamedAttachments(rev);
+            }
         }
 
         // Notify and return:
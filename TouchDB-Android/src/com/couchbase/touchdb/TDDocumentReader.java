@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
+import com.couchbase.touchdb.support.Base64;
+import com.couchbase.touchdb.support.GzipUtils;
+
+/**
+ * Parses a JSON document body, decoding the Base64 "data" of each of its inline attachments
+ * straight into the blob store as it's read instead of keeping it in the properties.
+ * Each such attachment is left in the properties with the "digest" and "length" of the stored
+ * blob, and a StreamedAttachment as its "follows", which processAttachmentsForRevision then
+ * just adds a row for.
+ */
+public class TDDocumentReader {
+
+    /**
+     * The "follows" value of an attachment whose data the reader has stored. It can't be parsed
+     * from JSON, so a document that just says "follows": true can't lay claim to a blob that's
+     * already in the store; it is written back out as true.
+     */
+    public static final class StreamedAttachment implements JsonSerializable {
+
+        private final TDBlobKey blobKey;
+        private final long length;
+
+        private StreamedAttachment(TDBlobKey blobKey, long length) {
+            this.blobKey = blobKey;
+            this.length = length;
+        }
+
+        public TDBlobKey getBlobKey() {
+            return blobKey;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeBoolean(true);
+        }
+
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private TDBlobStore blobStore;
+
+    public TDDocumentReader(TDBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public Map<String,Object> readDocument(byte[] json) throws IOException {
+        return readDocument(mapper.getJsonFactory().createJsonParser(json));
+    }
+
+    public Map<String,Object> readDocument(InputStream in) throws IOException {
+        return readDocument(mapper.getJsonFactory().createJsonParser(in));
+    }
+
+    private Map<String,Object> readDocument(JsonParser parser) throws IOException {
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Document is not a JSON object", parser.getCurrentLocation());
+            }
+            Map<String,Object> result = new LinkedHashMap<String,Object>();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                if(parser.nextToken() == JsonToken.START_OBJECT && "_attachments".equals(key)) {
+                    result.put(key, readAttachments(parser));
+                } else {
+                    result.put(key, mapper.readValue(parser, Object.class));
+                }
+            }
+            return result;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private Map<String,Object> readAttachments(JsonParser parser) throws IOException {
+        Map<String,Object> result = new LinkedHashMap<String,Object>();
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if(parser.nextToken() == JsonToken.START_OBJECT) {
+                result.put(name, readAttachment(parser));
+            } else {
+                result.put(name, mapper.readValue(parser, Object.class));
+            }
+        }
+        return result;
+    }
+
+    private Map<String,Object> readAttachment(JsonParser parser) throws IOException {
+        Map<String,Object> result = new LinkedHashMap<String,Object>();
+        TDBlobStoreWriter writer = null;
+        try {
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                if(parser.nextToken() == JsonToken.VALUE_STRING && "data".equals(key) && writer == null) {
+                    writer = decodeData(parser);
+                } else {
+                    result.put(key, mapper.readValue(parser, Object.class));
+                }
+            }
+            if(writer == null) {
+                return result;
+            }
+
+            if("gzip".equals(result.get("encoding"))) {
+                // The digest is of the decompressed data, so decompress it into another blob:
+                writer = decompressData(writer);
+                result.remove("encoding");
+            }
+            TDAttachmentEncoding encoding = writer.install((String)result.get("content_type"));
+            if(encoding == null) {
+                throw new IOException("Unable to store attachment");
+            }
+            result.put("follows", new StreamedAttachment(writer.getBlobKey(), writer.getLength()));
+            result.put("digest", "sha1-" + Base64.encodeBytes(writer.getBlobKey().getBytes()));
+            result.put("length", writer.getLength());
+            writer = null;
+            return result;
+        } finally {
+            if(writer != null) {
+                writer.cancel();
+            }
+        }
+    }
+
+    /**
+     * Decodes the current VALUE_STRING token into a new blob, straight from the parser's
+     * character buffer so the Base64 text is never copied into a String.
+     */
+    private TDBlobStoreWriter decodeData(JsonParser parser) throws IOException {
+        TDBlobStoreWriter writer = new TDBlobStoreWriter(blobStore);
+        try {
+            char[] chars = parser.getTextCharacters();
+            int offset = parser.getTextOffset();
+            int length = parser.getTextLength();
+            OutputStream out = new Base64.OutputStream(writer.getOutputStream(), Base64.DECODE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for(int start = 0; start < length; start += BUFFER_SIZE) {
+                int count = Math.min(BUFFER_SIZE, length - start);
+                for(int i = 0; i < count; i++) {
+                    char c = chars[offset + start + i];
+                    buffer[i] = (c < 0x80) ? (byte)c : (byte)'?';  // non-ASCII is invalid Base64
+                }
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            writer.finish();
+            return writer;
+        } catch (IOException e) {
+            writer.cancel();
+            throw e;
+        }
+    }
+
+    private TDBlobStoreWriter decompressData(TDBlobStoreWriter compressed) throws IOException {
+        TDBlobStoreWriter writer = new TDBlobStoreWriter(blobStore);
+        try {
+            InputStream in = compressed.openInputStream();
+            try {
+                GzipUtils.decompress(in, writer.getOutputStream());
+            } finally {
+                in.close();
+            }
+            writer.finish();
+            return writer;
+        } catch (IOException e) {
+            writer.cancel();
+            throw e;
+        } finally {
+            compressed.cancel();
+        }
+    }
+
+}
@@ -26,7 +26,7 @@ public class TDMisc {
         return convertToHex(sha1hash);
     }
 
-    private static String convertToHex(byte[] data) {
+    static String convertToHex(byte[] data) {
         StringBuffer buf = new StringBuffer();
         for (int i = 0; i < data.length; i++) {
             int halfbyte = (data[i] >>> 4) & 0x0F;
@@ -27,8 +27,19 @@ import com.couchbase.touchdb.TDDatabase.TDContentOptions;
  */
 public class TDQueryOptions {
 
+    /**
+     * Whether a query may use an out-of-date index: TDStaleNever updates the index first,
+     * TDStaleOK queries it as it is, and TDStaleUpdateAfter queries it as it is and then
+     * updates it in the background.
+     */
+    public enum TDStaleness {
+        TDStaleNever, TDStaleOK, TDStaleUpdateAfter
+    }
+
     private Object startKey = null;
     private Object endKey = null;
+    private String startKeyDocId = null;
+    private String endKeyDocId = null;
     private List<Object> keys = null;
     private int skip = 0;
     private int limit = Integer.MAX_VALUE;
@@ -40,6 +51,7 @@ public class TDQueryOptions {
     private boolean inclusiveEnd = true;
     private boolean reduce = false;
     private boolean group = false;
+    private TDStaleness stale = TDStaleness.TDStaleNever;
 
     public Object getStartKey() {
         return startKey;
@@ -57,6 +69,29 @@ public class TDQueryOptions {
         this.endKey = endKey;
     }
 
+    public String getStartKeyDocId() {
+        return startKeyDocId;
+    }
+
+    /**
+     * Sets the doc ID to start at among the rows whose key equals the start key, so that a query
+     * can resume right after the last row of the previous page instead of skipping rows.
+     */
+    public void setStartKeyDocId(String startKeyDocId) {
+        this.startKeyDocId = startKeyDocId;
+    }
+
+    public String getEndKeyDocId() {
+        return endKeyDocId;
+    }
+
+    /**
+     * Sets the doc ID to end at among the rows whose key equals the end key.
+     */
+    public void setEndKeyDocId(String endKeyDocId) {
+        this.endKeyDocId = endKeyDocId;
+    }
+
     public int getSkip() {
         return skip;
     }
@@ -145,4 +180,12 @@ public class TDQueryOptions {
         this.keys = keys;
     }
 
+    public TDStaleness getStale() {
+        return stale;
+    }
+
+    public void setStale(TDStaleness stale) {
+        this.stale = stale;
+    }
+
 }
@@ -28,6 +28,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import org.codehaus.jackson.map.ObjectMapper;
+
 /**
  * Manages a directory containing TDDatabases.
  */
@@ -35,9 +37,20 @@ public class TDServer {
 
     public static final String LEGAL_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789_$()+-/";
     public static final String DATABASE_SUFFIX = ".touchdb";
+    public static final String SHARED_ATTACHMENTS_DIRECTORY = "_attachments";
 
     private File directory;
     private Map<String, TDDatabase> databases;
+    private TDBlobStore sharedAttachments;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * A shared ObjectMapper; it's thread-safe once configured, and expensive to create.
+     */
+    public static ObjectMapper getObjectMapper() {
+        return mapper;
+    }
 
     public TDServer(String directoryName) throws IOException {
         this.directory = new File(directoryName);
@@ -52,6 +65,25 @@ public class TDServer {
         }
     }
 
+    /**
+     * Makes the databases opened from now on keep their attachments in one content-addressed
+     * store for the whole server, so an attachment present in several databases is only stored
+     * once. A database that already has attachments of its own moves them there when it opens.
+     */
+    public void enableSharedAttachmentStore() throws IOException {
+        if(sharedAttachments != null) {
+            return;
+        }
+        sharedAttachments = TDBlobStore.openSharedStore(directory.getPath() + File.separator + SHARED_ATTACHMENTS_DIRECTORY);
+        if(sharedAttachments == null) {
+            throw new IOException("Unable to open shared attachment store");
+        }
+    }
+
+    public TDBlobStore getSharedAttachmentStore() {
+        return sharedAttachments;
+    }
+
     private String pathForName(String name) {
         if((name == null) || (name.length() == 0) || Pattern.matches("^" + LEGAL_CHARACTERS, name) || !Character.isLowerCase(name.charAt(0))) {
             return null;
@@ -73,6 +105,7 @@ public class TDServer {
                 return null;
             }
             db.setName(name);
+            db.setSharedAttachmentStore(sharedAttachments);
             databases.put(name, db);
         }
         return db;
@@ -130,6 +163,10 @@ public class TDServer {
             database.close();
         }
         databases.clear();
+        if(sharedAttachments != null) {
+            sharedAttachments.close();
+            sharedAttachments = null;
+        }
     }
 
 }
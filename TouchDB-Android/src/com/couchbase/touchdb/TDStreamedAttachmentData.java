@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import com.couchbase.touchdb.support.Base64;
+
+/**
+ * Placeholder for an attachment's "data" in a document's properties, which Base64-encodes
+ * the blob straight from the blob store into the JSON output when the properties are
+ * serialized, instead of holding the encoded string in memory.
+ */
+public class TDStreamedAttachmentData implements JsonSerializable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private TDBlobStore blobStore;
+    private TDBlobKey key;
+    private boolean decode;
+
+    public TDStreamedAttachmentData(TDBlobStore blobStore, TDBlobKey key, boolean decode) {
+        this.blobStore = blobStore;
+        this.key = key;
+        this.decode = decode;
+    }
+
+    @Override
+    public void serialize(JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonProcessingException {
+        InputStream in = blobStore.blobStreamForKey(key, decode);
+        if(in == null) {
+            throw new JsonGenerationException("Unable to read attachment " + key);
+        }
+        try {
+            // JsonGenerator can only write a string value in one piece, so open the value with
+            // a raw quote and then append the Base64 characters to it as they're produced:
+            jgen.writeRawValue("\"");
+            OutputStream out = new Base64.OutputStream(new BufferedOutputStream(new RawOutputStream(jgen), BUFFER_SIZE), Base64.ENCODE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numRead;
+            while((numRead = in.read(buffer)) > 0) {
+                out.write(buffer, 0, numRead);
+            }
+            out.close();
+            jgen.writeRaw("\"");
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TDStreamedAttachmentData[" + key + "]";
+    }
+
+    /**
+     * Passes (ASCII) bytes through to a JsonGenerator as raw characters.
+     */
+    private static class RawOutputStream extends OutputStream {
+
+        private JsonGenerator jgen;
+        private char[] chars = new char[BUFFER_SIZE];
+
+        public RawOutputStream(JsonGenerator jgen) {
+            this.jgen = jgen;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            jgen.writeRaw((char)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(chars.length < len) {
+                chars = new char[len];
+            }
+            for(int i = 0; i < len; i++) {
+                chars[i] = (char)b[off + i];
+            }
+            jgen.writeRaw(chars, 0, len);
+        }
+
+    }
+
+}
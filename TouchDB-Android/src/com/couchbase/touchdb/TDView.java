@@ -20,15 +20,28 @@ package com.couchbase.touchdb;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.codehaus.jackson.map.ObjectMapper;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -36,18 +49,59 @@ import android.util.Log;
  */
 public class TDView {
 
+    /**
+     * Number of rows reduced at a time; the partial reductions of a larger group are combined
+     * with rereduce.
+     */
     public static final int REDUCE_BATCH_SIZE = 100;
 
+    /**
+     * Number of documents mapped as one unit of work while indexing; the rows they emit are
+     * inserted into the maps table together.
+     */
+    public static final int MAP_BATCH_SIZE = 100;
+
+    /**
+     * Number of sequences whose map rows share one persisted partial reduction, when incremental
+     * reduce is enabled.
+     */
+    public static final int REDUCTION_BLOCK_SIZE = 1000;
+
+    /**
+     * Collations of view keys. (These are stored by ordinal, so new ones go at the end.)
+     */
     public enum TDViewCollation {
         TDViewCollationUnicode, TDViewCollationRaw, TDViewCollationASCII
     }
 
+    // Identifies the keys of each multi-key query in the query_keys table:
+    private static final AtomicLong nextQueryId = new AtomicLong();
+
+    // Runs the index updates of scheduleIndexUpdate, one at a time, on indexUpdateThread:
+    private static volatile Thread indexUpdateThread;
+    private static final ExecutorService indexUpdateExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TDView index update");
+            indexUpdateThread = thread;
+            return thread;
+        }
+    });
+
+    // Maps batches of documents in parallel for updateIndexes; made when first needed:
+    private static ExecutorService mapExecutor;
+
     private TDDatabase db;
     private String name;
     private int viewId;
     private TDViewMapBlock mapBlock;
     private TDViewReduceBlock reduceBlock;
     private TDViewCollation collation;
+    private TDViewIndexer indexer;
+    private final AtomicBoolean indexUpdatePending = new AtomicBoolean();
+    private volatile Future<?> indexUpdate;
+    private boolean incrementalReduce;
     private static TDViewCompiler compiler;
 
     public TDView(TDDatabase db, String name) {
@@ -73,8 +127,51 @@ public class TDView {
         return collation;
     }
 
+    /**
+     * Sets the collation of the view's keys. Rows are indexed by sort keys in the view's
+     * collation, so the index is rebuilt if it was built in a different one.
+     */
     public void setCollation(TDViewCollation collation) {
         this.collation = collation;
+        if (db != null && db.open() && getViewId() > 0) {
+            try {
+                resetIndexIfCollationChanged();
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error setting view collation", e);
+            }
+        }
+    }
+
+    /**
+     * Discards the index if it was built in a collation other than the view's current one, or by
+     * another version of the Unicode collator (as after a change of locale or an ICU update).
+     */
+    private void resetIndexIfCollationChanged() {
+        String collationVersion = "";
+        if (collation == TDViewCollation.TDViewCollationUnicode) {
+            collationVersion = TDCollateJSON.getCollationVersion();
+        }
+        ContentValues updateValues = new ContentValues();
+        updateValues.put("collation", collation.ordinal());
+        updateValues.put("collation_version", collationVersion);
+        updateValues.put("lastSequence", 0);
+        String[] whereArgs = { Integer.toString(getViewId()), Integer.toString(collation.ordinal()), collationVersion };
+        db.getDatabase().update("views", updateValues,
+                "view_id=? AND (collation!=? OR collation_version IS NOT ?)", whereArgs);
+    }
+
+    public boolean isIncrementalReduce() {
+        return incrementalReduce;
+    }
+
+    /**
+     * Enables persisting partial reductions of the view's rows, so that reducing the whole index
+     * only has to re-reduce the blocks of sequences that changed since the last such query. The
+     * reduce block must then support rereduce, as it will be called to combine the partial
+     * reductions.
+     */
+    public void setIncrementalReduce(boolean incrementalReduce) {
+        this.incrementalReduce = incrementalReduce;
     }
 
     /**
@@ -160,6 +257,7 @@ public class TDView {
                 ContentValues insertValues = new ContentValues();
                 insertValues.put("name", name);
                 insertValues.put("version", version);
+                insertValues.put("collation", collation.ordinal());
                 database.insert("views", null, insertValues);
                 return true;
             }
@@ -195,6 +293,7 @@ public class TDView {
 
             String[] whereArgs = { Integer.toString(getViewId()) };
             db.getDatabase().delete("maps", "view_id=?", whereArgs);
+            db.getDatabase().delete("reductions", "view_id=?", whereArgs);
 
             ContentValues updateValues = new ContentValues();
             updateValues.put("lastSequence", 0);
@@ -215,17 +314,112 @@ public class TDView {
     }
 
     public void databaseClosing() {
+        stopBackgroundIndexing();
+        stopIndexUpdate();
         db = null;
         viewId = 0;
     }
 
+    /**
+     * Starts keeping the view's index up to date in the background as the database changes
+     * (see TDViewIndexer), if it isn't already.
+     */
+    public TDViewIndexer startBackgroundIndexing() {
+        if (indexer == null) {
+            indexer = new TDViewIndexer(this);
+            indexer.start();
+        }
+        return indexer;
+    }
+
+    public void stopBackgroundIndexing() {
+        if (indexer != null) {
+            indexer.stop();
+            indexer = null;
+        }
+    }
+
+    /**
+     * Updates the index soon, in the background: by the background indexer if it's running,
+     * otherwise on a thread shared by all views. Requests made while an update is still waiting
+     * to run are satisfied by that update.
+     */
+    public void scheduleIndexUpdate() {
+        if (indexer != null) {
+            indexer.scheduleUpdate();
+            return;
+        }
+        if (!indexUpdatePending.compareAndSet(false, true)) {
+            return;
+        }
+        indexUpdate = indexUpdateExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                // Changes made from now on need another update:
+                indexUpdatePending.set(false);
+                if (db == null) {
+                    return;  // the database was closed meanwhile
+                }
+                try {
+                    updateIndex();
+                } catch (Exception e) {
+                    Log.e(TDDatabase.TAG, "Error updating index of view " + name, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the update scheduled by scheduleIndexUpdate if it hasn't started yet, or else waits
+     * for it to finish, so that it doesn't use the database after it's closed.
+     */
+    private void stopIndexUpdate() {
+        Future<?> update = indexUpdate;
+        if (update == null) {
+            return;
+        }
+        indexUpdate = null;
+        update.cancel(false);
+        if (Thread.currentThread() == indexUpdateThread) {
+            return;  // closed by the update itself, which can't be waited for
+        }
+        try {
+            update.get();
+        } catch (CancellationException e) {
+            // it never started
+        } catch (ExecutionException e) {
+            // already logged by the update
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The background indexer, if background indexing was started.
+     */
+    public TDViewIndexer getBackgroundIndexer() {
+        return indexer;
+    }
+
+    /**
+     * The number of sequences the index is behind the database.
+     */
+    public long getIndexLag() {
+        long lastSequenceIndexed = getLastSequenceIndexed();
+        if (lastSequenceIndexed < 0) {
+            return 0;
+        }
+        return Math.max(0, db.getLastSequence() - lastSequenceIndexed);
+    }
+
     /*** Indexing ***/
 
     public static String toJSONString(Object object) {
         if (object == null) {
             return null;
         }
-        ObjectMapper mapper = new ObjectMapper();
+        ObjectMapper mapper = TDServer.getObjectMapper();
         String result = null;
         try {
             result = mapper.writeValueAsString(object);
@@ -239,7 +433,7 @@ public class TDView {
         if (json == null) {
             return null;
         }
-        ObjectMapper mapper = new ObjectMapper();
+        ObjectMapper mapper = TDServer.getObjectMapper();
         Object result = null;
         try {
             result = mapper.readValue(json, Object.class);
@@ -250,100 +444,140 @@ public class TDView {
     }
 
     /**
-     * Updates the view's index (incrementally) if necessary.
+     * The views indexed together with this one: those of the same design document (views named
+     * "designdoc/viewname") that have a map block, including this one.
+     */
+    public List<TDView> getViewsInGroup() {
+        List<TDView> result = new ArrayList<TDView>();
+        int slash = name.indexOf('/');
+        if (slash > 0) {
+            String prefix = name.substring(0, slash + 1);
+            List<TDView> allViews = db.getAllViews();
+            if (allViews != null) {
+                for (TDView view : allViews) {
+                    if (view != this && view.getName().startsWith(prefix) && view.getMapBlock() != null) {
+                        result.add(view);
+                    }
+                }
+            }
+        }
+        result.add(this);
+        return result;
+    }
+
+    /**
+     * Updates the view's index (incrementally) if necessary, along with the indexes of the other
+     * views of its design document, in one pass over the database.
      * @return 200 if updated, 304 if already up-to-date, else an error code
      */
-    @SuppressWarnings("unchecked")
     public TDStatus updateIndex() {
-        Log.v(TDDatabase.TAG, "Re-indexing view " + name + " ...");
-        assert (mapBlock != null);
+        boolean wasStale = isStale();
+        TDStatus result = updateIndexes(getViewsInGroup());
+        if (result.getCode() == TDStatus.OK && !wasStale) {
+            result.setCode(TDStatus.NOT_MODIFIED);
+        }
+        return result;
+    }
 
-        if (getViewId() < 0) {
-            return new TDStatus(TDStatus.NOT_FOUND);
+    /**
+     * Updates the indexes of several views of the same database together: the documents changed
+     * since the least recently updated of them are read and parsed once, and handed to the map
+     * block of each view that hasn't indexed them yet. Map blocks are given the same document
+     * dictionary, so they shouldn't modify it.
+     * @return 200 if any were updated, 304 if all were already up-to-date, else an error code
+     */
+    public static TDStatus updateIndexes(List<TDView> views) {
+        return updateIndexes(views, 0);
+    }
+
+    /**
+     * Like updateIndexes(views), but if maxSequences is positive only indexes that many sequences
+     * past the least up-to-date view, so that a big backlog can be worked off in several short
+     * transactions instead of one long one.
+     */
+    public static TDStatus updateIndexes(List<TDView> views, long maxSequences) {
+        // Verbose logging costs string building per row, so it's only done when enabled:
+        boolean logVerbose = Log.isLoggable(TDDatabase.TAG, Log.VERBOSE);
+        TDDatabase db = views.get(0).getDb();
+        for (TDView view : views) {
+            assert (view.getMapBlock() != null);
+            if (view.getViewId() < 0) {
+                return new TDStatus(TDStatus.NOT_FOUND);
+            }
         }
 
         db.beginTransaction();
         TDStatus result = new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         Cursor cursor = null;
+        MapRowInserter inserter = null;
+        ExecutorService executor = null;
+        LinkedList<Future<MapRowBuffer>> pendingBatches = new LinkedList<Future<MapRowBuffer>>();
 
         try {
 
-            long lastSequence = getLastSequenceIndexed();
             long dbMaxSequence = db.getLastSequence();
-            if(lastSequence == dbMaxSequence) {
-                result.setCode(TDStatus.NOT_MODIFIED);
-                return result;
-            }
-
-            // First remove obsolete emitted results from the 'maps' table:
-            long sequence = lastSequence;
-            if (lastSequence < 0) {
-                return result;
+            long[] viewLastSequences = new long[views.size()];
+            long minLastSequence = dbMaxSequence;
+            for (int i = 0; i < views.size(); i++) {
+                views.get(i).resetIndexIfCollationChanged();
+                viewLastSequences[i] = views.get(i).getLastSequenceIndexed();
+                if (viewLastSequences[i] < 0) {
+                    return result;
+                }
+                minLastSequence = Math.min(minLastSequence, viewLastSequences[i]);
             }
-
-            if (lastSequence == 0) {
-                // If the lastSequence has been reset to 0, make sure to remove
-                // any leftover rows:
-                String[] whereArgs = { Integer.toString(getViewId()) };
-                db.getDatabase().delete("maps", "view_id=?", whereArgs);
-            } else {
-                // Delete all obsolete map results (ones from since-replaced
-                // revisions):
-                String[] args = { Integer.toString(getViewId()),
-                        Long.toString(lastSequence),
-                        Long.toString(lastSequence) };
-                db.getDatabase().execSQL(
-                        "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                + "SELECT parent FROM revs WHERE sequence>? "
-                                + "AND parent>0 AND parent<=?)", args);
+            long toSequence = dbMaxSequence;
+            if (maxSequences > 0) {
+                toSequence = Math.min(dbMaxSequence, minLastSequence + maxSequences);
             }
 
+            List<TDView> staleViews = new ArrayList<TDView>();
+            List<Long> lastSequences = new ArrayList<Long>();
             int deleted = 0;
-            cursor = db.getDatabase().rawQuery("SELECT changes()", null);
-            cursor.moveToFirst();
-            deleted = cursor.getInt(0);
-            cursor.close();
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-
-                @Override
-                public void emit(Object key, Object value) {
+            for (int i = 0; i < views.size(); i++) {
+                TDView view = views.get(i);
+                long lastSequence = viewLastSequences[i];
+                if (lastSequence >= toSequence) {
+                    continue;
+                }
+                if (logVerbose) {
+                    Log.v(TDDatabase.TAG, "Re-indexing view " + view.getName() + " ...");
+                }
+                staleViews.add(view);
+                lastSequences.add(lastSequence);
+                deleted += view.deleteObsoleteRows(lastSequence);
+            }
+            if (staleViews.isEmpty()) {
+                result.setCode(TDStatus.NOT_MODIFIED);
+                return result;
+            }
 
-                    try {
-                        ObjectMapper mapper = new ObjectMapper();
-                        String keyJson = mapper.writeValueAsString(key);
-                        String valueJson = mapper.writeValueAsString(value);
-                        Log.v(TDDatabase.TAG, "    emit(" + keyJson + ", "
-                                + valueJson + ")");
-
-                        ContentValues insertValues = new ContentValues();
-                        insertValues.put("view_id", getViewId());
-                        insertValues.put("sequence", sequence);
-                        insertValues.put("key", keyJson);
-                        insertValues.put("value", valueJson);
-                        db.getDatabase().insert("maps", null, insertValues);
-                    } catch (Exception e) {
-                        Log.e(TDDatabase.TAG, "Error emitting", e);
-                        // find a better way to propogate this back
-                    }
+            // Now scan every revision added since the least recent time one of
+            // the views was indexed, and map the documents in batches. If all the
+            // map blocks are thread-safe, a pool of worker threads maps the
+            // batches while this thread keeps reading documents and inserts each
+            // batch's rows in order as it completes. All database access stays
+            // on this thread, which owns the transaction. Fewer documents than
+            // make a full batch are just mapped here.
+            inserter = new MapRowInserter(db.getDatabase());
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            for (TDView view : staleViews) {
+                if (!(view.getMapBlock() instanceof TDThreadSafeViewMapBlock)) {
+                    numThreads = 1;
                 }
-            };
+            }
 
-            // Now scan every revision added since the last time the view was
-            // indexed:
-            String[] selectArgs = { Long.toString(lastSequence) };
+            String[] selectArgs = { Long.toString(minLastSequence), Long.toString(toSequence) };
 
             cursor = db.getDatabase().rawQuery(
                     "SELECT revs.doc_id, sequence, docid, revid, json FROM revs, docs "
-                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
+                            + "WHERE sequence>? AND sequence<=? AND current!=0 AND deleted=0 "
                             + "AND revs.doc_id = docs.doc_id "
                             + "ORDER BY revs.doc_id, revid DESC", selectArgs);
 
             cursor.moveToFirst();
 
+            MapBatch batch = new MapBatch(staleViews, lastSequences, logVerbose);
             long lastDocID = 0;
             while (!cursor.isAfterLast()) {
                 long docID = cursor.getLong(0);
@@ -354,8 +588,7 @@ public class TDView {
                     // of a conflict.
                     lastDocID = docID;
 
-                    // Reconstitute the document as a dictionary:
-                    sequence = cursor.getLong(1);
+                    long sequence = cursor.getLong(1);
                     String docId = cursor.getString(2);
                     if(docId.startsWith("_design/")) {  // design docs don't get indexed!
                         cursor.moveToNext();
@@ -363,146 +596,335 @@ public class TDView {
                     }
                     String revId = cursor.getString(3);
                     byte[] json = cursor.getBlob(4);
-                    Map<String, Object> properties = db
-                            .documentPropertiesFromJSON(json, docId, revId,
-                                    sequence, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
-
-                    if (properties != null) {
-                        // Call the user-defined map() to emit new key/value
-                        // pairs from this revision:
-                        Log.v(TDDatabase.TAG,
-                                "  call map for sequence="
-                                        + Long.toString(sequence));
-                        emitBlock.setSequence(sequence);
-                        mapBlock.map(properties, emitBlock);
-                    }
 
+                    // The document's JSON is parsed when it's mapped, but the
+                    // properties that come from the database are read here:
+                    TDRevision rev = new TDRevision(docId, revId, false);
+                    rev.setSequence(sequence);
+                    Map<String, Object> extra = db.extraPropertiesForRevision(rev,
+                            EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+                    batch.add(sequence, docId, json, extra);
+
+                    if (batch.size() >= MAP_BATCH_SIZE) {
+                        if (executor == null && numThreads > 1) {
+                            executor = getMapExecutor(numThreads);
+                        }
+                        mapBatch(batch, executor, pendingBatches, inserter, numThreads);
+                        batch = new MapBatch(staleViews, lastSequences, logVerbose);
+                    }
                 }
 
                 cursor.moveToNext();
             }
 
+            if (batch.size() > 0) {
+                mapBatch(batch, executor, pendingBatches, inserter, numThreads);
+            }
+            while (!pendingBatches.isEmpty()) {
+                inserter.insert(resultOfBatch(pendingBatches.removeFirst()));
+            }
+
             // Finally, record the last revision sequence number that was
             // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            db.getDatabase().update("views", updateValues, "view_id=?",
-                    whereArgs);
+            for (TDView view : staleViews) {
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("lastSequence", toSequence);
+                String[] whereArgs = { Integer.toString(view.getViewId()) };
+                db.getDatabase().update("views", updateValues, "view_id=?",
+                        whereArgs);
+            }
 
-            // FIXME actually count number added :)
-            Log.v(TDDatabase.TAG, "...Finished re-indexing view " + name
-                    + " up to sequence " + Long.toString(dbMaxSequence)
-                    + " (deleted " + deleted + " added " + "?" + ")");
+            if (logVerbose) {
+                Log.v(TDDatabase.TAG, "...Finished re-indexing " + staleViews.size() + " view(s)"
+                        + " up to sequence " + Long.toString(toSequence)
+                        + " (deleted " + deleted + " added " + inserter.getInsertedCount() + ")");
+            }
             result.setCode(TDStatus.OK);
 
         } catch (SQLException e) {
             return result;
+        } catch (InterruptedException e) {
+            Log.w(TDDatabase.TAG, "Interrupted while indexing views");
+            Thread.currentThread().interrupt();
+            return result;
         } finally {
+            // Batches still being mapped when indexing failed are of no use:
+            for (Future<MapRowBuffer> pendingBatch : pendingBatches) {
+                pendingBatch.cancel(true);
+            }
             if (cursor != null) {
                 cursor.close();
             }
+            if (inserter != null) {
+                inserter.close();
+            }
             if (!result.isSuccessful()) {
-                Log.w(TDDatabase.TAG, "Failed to rebuild view " + name + ": "
+                Log.w(TDDatabase.TAG, "Failed to rebuild views: "
                         + result.getCode());
             }
-            if(db != null) {
-                db.endTransaction(result.isSuccessful());
-            }
+            db.endTransaction(result.isSuccessful());
         }
 
         return result;
     }
 
+    /**
+     * Removes the rows of revisions replaced since the given sequence (or all rows, if it's 0)
+     * from the maps table, before the view is updated. Returns the number of rows deleted.
+     */
+    private int deleteObsoleteRows(long lastSequence) {
+        if (lastSequence == 0) {
+            // If the lastSequence has been reset to 0, make sure to remove
+            // any leftover rows:
+            String[] whereArgs = { Integer.toString(getViewId()) };
+            db.getDatabase().delete("reductions", "view_id=?", whereArgs);
+            return db.getDatabase().delete("maps", "view_id=?", whereArgs);
+        }
+
+        // Invalidate the partial reductions of the blocks that are about to gain
+        // or lose rows:
+        String[] reductionArgs = { Integer.toString(getViewId()),
+                Long.toString(lastSequence / REDUCTION_BLOCK_SIZE),
+                Long.toString(lastSequence),
+                Long.toString(lastSequence) };
+        db.getDatabase().execSQL(
+                "DELETE FROM reductions WHERE view_id=? AND (block>=? OR block IN ("
+                        + "SELECT parent/" + REDUCTION_BLOCK_SIZE + " FROM revs WHERE sequence>? "
+                        + "AND parent>0 AND parent<=?))", reductionArgs);
+
+        // Delete all obsolete map results (ones from since-replaced
+        // revisions):
+        String[] args = { Integer.toString(getViewId()),
+                Long.toString(lastSequence),
+                Long.toString(lastSequence) };
+        db.getDatabase().execSQL(
+                "DELETE FROM maps WHERE view_id=? AND sequence IN ("
+                        + "SELECT parent FROM revs WHERE sequence>? "
+                        + "AND parent>0 AND parent<=?)", args);
+
+        Cursor cursor = null;
+        try {
+            cursor = db.getDatabase().rawQuery("SELECT changes()", null);
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of threads that map batches of documents, shared by all views' updates.
+     * Its threads are daemons, so that they don't keep the process alive while idle.
+     */
+    private static synchronized ExecutorService getMapExecutor(int numThreads) {
+        if (mapExecutor == null) {
+            mapExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TDView map");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mapExecutor;
+    }
+
+    /**
+     * Maps a batch of documents, on this thread or (given an executor) on a worker thread. Keeps
+     * at most two batches per thread in flight, inserting the oldest ones' rows as they finish.
+     */
+    private static void mapBatch(MapBatch batch, ExecutorService executor, LinkedList<Future<MapRowBuffer>> pendingBatches,
+            MapRowInserter inserter, int numThreads) throws InterruptedException {
+        if (executor == null) {
+            inserter.insert(batch.call());
+            return;
+        }
+        pendingBatches.add(executor.submit(batch));
+        while (pendingBatches.size() > 2 * numThreads) {
+            inserter.insert(resultOfBatch(pendingBatches.removeFirst()));
+        }
+    }
+
+    /**
+     * Waits for a batch mapped on a worker thread, rethrowing anything its map block threw.
+     */
+    private static MapRowBuffer resultOfBatch(Future<MapRowBuffer> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     public Cursor resultSetWithOptions(TDQueryOptions options, TDStatus status) {
         if (options == null) {
             options = new TDQueryOptions();
         }
 
-        // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
-        // they could be indexed with the right collation, instead of having to specify it here.
-        String collationStr = "";
-        if(collation == TDViewCollation.TDViewCollationASCII) {
-            collationStr += " COLLATE JSON_ASCII";
-        }
-        else if(collation == TDViewCollation.TDViewCollationRaw) {
-            collationStr += " COLLATE JSON_RAW";
+        String columns = "key, value, maps.docid";
+        if (options.isIncludeDocs()) {
+            columns = columns + ", revid, json, revs.sequence";
         }
 
-        String sql = "SELECT key, value, docid";
-        if (options.isIncludeDocs()) {
-            sql = sql + ", revid, json, revs.sequence";
+        // The keys of a multi-key query are loaded into a temporary table to join the index with,
+        // rather than listed in the SQL, so that any number of them can be queried, and so that
+        // the rows come back in the order the keys were given, repeated for repeated keys:
+        long queryId = 0;
+        if(options.getKeys() != null) {
+            queryId = loadQueryKeys(options.getKeys());
         }
-        sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
 
         List<String> argsList = new ArrayList<String>();
-        argsList.add(Integer.toString(getViewId()));
+        String sql = rowQuery(columns, options, queryId, argsList);
 
-        if(options.getKeys() != null) {
-            sql += " AND key in (";
-            String item = "?";
-            for (Object key : options.getKeys()) {
-                sql += item;
-                item = ", ?";
-                argsList.add(toJSONString(key));
-            }
-            sql += ")";
-        }
-
-        Object minKey = options.getStartKey();
-        Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
-        boolean inclusiveMax = options.isInclusiveEnd();
-        if (options.isDescending()) {
-            minKey = maxKey;
-            maxKey = options.getStartKey();
-            inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
-        }
-
-        if (minKey != null) {
-            assert (minKey instanceof String);
-            if (inclusiveMin) {
-                sql += " AND key >= ?";
-            } else {
-                sql += " AND key > ?";
+        Log.v(TDDatabase.TAG, "Query " + name + ": " + sql);
+
+        Cursor cursor;
+        try {
+            cursor = db.getDatabase().rawQuery(sql,
+                    argsList.toArray(new String[argsList.size()]));
+        } catch (SQLException e) {
+            if (queryId != 0) {
+                unloadQueryKeys(queryId);
             }
-            sql += collationStr;
-            argsList.add(toJSONString(minKey));
+            throw e;
         }
+        if (queryId != 0) {
+            // The keys have to stay loaded for as long as the cursor may re-run the query:
+            final long loadedQueryId = queryId;
+            cursor = new CursorWrapper(cursor) {
+                @Override
+                public void close() {
+                    super.close();
+                    unloadQueryKeys(loadedQueryId);
+                }
+            };
+        }
+        return cursor;
+    }
 
-        if (maxKey != null) {
-            assert (maxKey instanceof String);
-            if (inclusiveMax) {
-                sql += " AND key <= ?";
-            } else {
-                sql += " AND key < ?";
-            }
-            sql += collationStr;
-            argsList.add(toJSONString(maxKey));
+    /**
+     * Returns the SQL selecting the given columns of the view rows matching the query options,
+     * in order, adding its arguments to argsList. If queryId isn't 0, the rows are those of the
+     * query's keys, already loaded into query_keys.
+     */
+    private String rowQuery(String columns, TDQueryOptions options, long queryId, List<String> argsList) {
+        String sql = "SELECT " + columns;
+        if(queryId != 0) {
+            sql = sql + " FROM query_keys CROSS JOIN maps, revs, docs WHERE query_keys.query_id=?"
+                    + " AND maps.view_id=? AND maps.sort_key=query_keys.sort_key";
+            argsList.add(Long.toString(queryId));
+        } else {
+            sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
+        }
+        argsList.add(Integer.toString(getViewId()));
+
+        // Rows are ordered by key and then doc ID, both in the maps_sort_keys index, so a page
+        // can start right after the last row of the previous one (startkey + startkey_docid):
+        boolean descending = options.isDescending();
+        Object startKey = options.getStartKey();
+        if (startKey != null) {
+            sql += boundClause(startKey, options.getStartKeyDocId(), !descending, true, argsList);
+        }
+        Object endKey = options.getEndKey();
+        if (endKey != null) {
+            sql += boundClause(endKey, options.getEndKeyDocId(), descending, options.isInclusiveEnd(), argsList);
         }
 
         sql = sql
-                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
-        sql += collationStr;
-        if (options.isDescending()) {
-            sql = sql + " DESC";
+                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY ";
+        if (queryId != 0) {
+            sql = sql + "query_keys.position, ";
+        }
+        if (descending) {
+            sql = sql + "maps.sort_key DESC, maps.docid DESC";
+        } else {
+            sql = sql + "maps.sort_key, maps.docid";
         }
         sql = sql + " LIMIT ? OFFSET ?";
         argsList.add(Integer.toString(options.getLimit()));
         argsList.add(Integer.toString(options.getSkip()));
+        return sql;
+    }
 
-        Log.v(TDDatabase.TAG, "Query " + name + ": " + sql);
+    /**
+     * Loads the sort keys of a multi-key query into the query_keys temporary table, numbered in
+     * order, under a new query ID, which is returned. Temporary tables belong to the database
+     * connection, so the table is created the first time it's needed after opening.
+     */
+    private long loadQueryKeys(List<Object> keys) {
+        SQLiteDatabase database = db.getDatabase();
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS query_keys ("
+                + "query_id INTEGER NOT NULL, position INTEGER NOT NULL, sort_key BLOB NOT NULL)");
+        database.execSQL("CREATE INDEX IF NOT EXISTS query_keys_by_id ON query_keys(query_id, position)");
 
-        Cursor cursor = db.getDatabase().rawQuery(sql,
-                argsList.toArray(new String[argsList.size()]));
-        return cursor;
+        long queryId = nextQueryId.incrementAndGet();
+        SQLiteStatement statement = database.compileStatement("INSERT INTO query_keys (query_id, position, sort_key) VALUES (?, ?, ?)");
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            int position = 0;
+            for (Object key : keys) {
+                statement.bindLong(1, queryId);
+                statement.bindLong(2, position++);
+                statement.bindBlob(3, TDViewSortKey.sortKeyForKey(key, collation));
+                statement.executeInsert();
+            }
+            success = true;
+        } finally {
+            db.endTransaction(success);
+            statement.close();
+        }
+        return queryId;
+    }
+
+    private void unloadQueryKeys(long queryId) {
+        try {
+            String[] whereArgs = { Long.toString(queryId) };
+            db.getDatabase().delete("query_keys", "query_id=?", whereArgs);
+        } catch (SQLException e) {
+            Log.w(TDDatabase.TAG, "Error removing the keys of view query " + queryId, e);
+        }
+    }
+
+    /**
+     * Returns the SQL condition limiting the rows to one side of a key (and, among rows with that
+     * key, of a doc ID): a lower bound if isMin, else an upper bound.
+     */
+    private String boundClause(Object key, String docId, boolean isMin, boolean inclusive, List<String> argsList) {
+        String keyLiteral = sortKeyLiteral(key);
+        String op = isMin ? ">" : "<";
+        if (docId == null) {
+            return " AND maps.sort_key " + op + (inclusive ? "= " : " ") + keyLiteral;
+        }
+        // The first condition is the one the index can seek by:
+        argsList.add(docId);
+        return " AND maps.sort_key " + op + "= " + keyLiteral + " AND (maps.sort_key " + op + " " + keyLiteral
+                + " OR maps.docid " + op + (inclusive ? "=" : "") + " ?)";
+    }
+
+    /**
+     * Returns an SQL BLOB literal of the sort key of a view key, in this view's collation.
+     */
+    private String sortKeyLiteral(Object key) {
+        return "X'" + TDMisc.convertToHex(TDViewSortKey.sortKeyForKey(key, collation)) + "'";
     }
 
     // Are key1 and key2 grouped together at this groupLevel?
     public static boolean groupTogether(Object key1, Object key2, int groupLevel) {
         if(groupLevel == 0 || !(key1 instanceof List) || !(key2 instanceof List)) {
-            return key1.equals(key2);
+            return (key1 == null) ? (key2 == null) : key1.equals(key2);
         }
         @SuppressWarnings("unchecked")
         List<Object> key1List = (List<Object>)key1;
@@ -510,7 +932,8 @@ public class TDView {
         List<Object> key2List = (List<Object>)key2;
         int end = Math.min(groupLevel, Math.min(key1List.size(), key2List.size()));
         for(int i = 0; i < end; ++i) {
-            if(!key1List.get(i).equals(key2List.get(i))) {
+            Object element1 = key1List.get(i);
+            if((element1 == null) ? (key2List.get(i) != null) : !element1.equals(key2List.get(i))) {
                 return false;
             }
         }
@@ -542,7 +965,7 @@ public class TDView {
             cursor = db
                     .getDatabase()
                     .rawQuery(
-                            "SELECT sequence, key, value FROM maps WHERE view_id=? ORDER BY key",
+                            "SELECT sequence, key, value FROM maps WHERE view_id=? ORDER BY sort_key",
                             selectArgs);
 
             cursor.moveToFirst();
@@ -567,99 +990,137 @@ public class TDView {
         return result;
     }
 
+    /**
+     * Queries the view without reducing or grouping, returning an iterator over the result rows
+     * that reads them from the index as they're requested. Does NOT first update the index.
+     *
+     * @param options The options to use; reduce and group are ignored.
+     * @param status Set to the status of the query.
+     * @return An iterator over the result rows, which the caller must close, or null on error.
+     */
+    public TDViewRowIterator rowIteratorWithOptions(TDQueryOptions options, TDStatus status) {
+        if (options == null) {
+            options = new TDQueryOptions();
+        }
+
+        try {
+            Cursor cursor = resultSetWithOptions(options, status);
+            status.setCode(TDStatus.OK);
+            return new TDViewRowIterator(db, cursor, options);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error querying view", e);
+            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+            return null;
+        }
+    }
+
     /**
      * Queries the view. Does NOT first update the index.
      *
      * @param options The options to use.
      * @param status An array of result rows -- each is a dictionary with "key" and "value" keys, and possibly "id" and "doc".
      */
-    @SuppressWarnings("unchecked")
     public List<Map<String, Object>> queryWithOptions(TDQueryOptions options, TDStatus status) {
         if (options == null) {
             options = new TDQueryOptions();
         }
 
-        Cursor cursor = null;
+        if(incrementalReduce && reduceBlock != null && options.isReduce() && !options.isGroup() && options.getGroupLevel() == 0
+                && options.getStartKey() == null && options.getEndKey() == null && options.getKeys() == null
+                && options.getSkip() == 0 && options.getLimit() == Integer.MAX_VALUE) {
+            return reduceAllRows(status);
+        }
+
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || (groupLevel > 0);
+        boolean reduce = options.isReduce() || group;
+
+        if(reduce && (reduceBlock == null) && !group) {
+            Log.w(TDDatabase.TAG, "Cannot use reduce option in view " + name + " which has no reduce block defined");
+            status.setCode(TDStatus.BAD_REQUEST);
+            return null;
+        }
+
         List<Map<String, Object>> rows = new ArrayList<Map<String,Object>>();
-        try {
-            cursor = resultSetWithOptions(options, status);
-            int groupLevel = options.getGroupLevel();
-            boolean group = options.isGroup() || (groupLevel > 0);
-            boolean reduce = options.isReduce() || group;
+        if(!reduce) {
+            // Regular query:
+            TDViewRowIterator iterator = rowIteratorWithOptions(options, status);
+            if(iterator == null) {
+                return null;
+            }
+            try {
+                while (iterator.hasNext()) {
+                    rows.add(iterator.next());
+                }
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error querying view", e);
+                return null;
+            } finally {
+                iterator.close();
+            }
+            return rows;
+        }
 
-            if(reduce && (reduceBlock == null) && !group) {
-                Log.w(TDDatabase.TAG, "Cannot use reduce option in view " + name + " which has no reduce block defined");
-                status.setCode(TDStatus.BAD_REQUEST);
+        // A built-in reduce function, over whole keys, can be done by SQLite:
+        if(reduceBlock instanceof TDBuiltinReduceBlock && groupLevel == 0 && options.getKeys() == null) {
+            try {
+                List<Map<String, Object>> reducedRows = builtinReduceWithOptions((TDBuiltinReduceBlock)reduceBlock, options, group);
+                if(reducedRows != null) {
+                    status.setCode(TDStatus.OK);
+                    return reducedRows;
+                }
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error querying view", e);
                 return null;
             }
+        }
 
-            List<Object> keysToReduce = null;
-            List<Object> valuesToReduce = null;
+        // Reduced or grouped query:
+        Cursor cursor = null;
+        try {
+            cursor = resultSetWithOptions(options, status);
+
+            List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+            List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+            List<Object> partialReductions = new ArrayList<Object>();
             Object lastKey = null;
-            if(reduce) {
-                keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
-                valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
-            }
+            boolean sawRow = false;    // (keys may be null, so lastKey can't tell)
 
             cursor.moveToFirst();
             while (!cursor.isAfterLast()) {
                 Object key = fromJSON(cursor.getBlob(0));
                 Object value = fromJSON(cursor.getBlob(1));
-                assert(key != null);
-                if(reduce) {
-                    // Reduced or grouped query:
-                    if(group && !groupTogether(key, lastKey, groupLevel) && (lastKey != null)) {
-                        // This pair starts a new group, so reduce & record the last one:
-                        Object reduced = (reduceBlock != null) ? reduceBlock.reduce(keysToReduce, valuesToReduce, false) : null;
-                        Map<String,Object> row = new HashMap<String,Object>();
-                        row.put("key", groupKey(lastKey, groupLevel));
-                        if(reduced != null) {
-                            row.put("value", reduced);
-                        }
-                        rows.add(row);
-                        keysToReduce.clear();
-                        valuesToReduce.clear();
-                    }
-                    keysToReduce.add(key);
-                    valuesToReduce.add(value);
-                    lastKey = key;
-                } else {
-                    // Regular query:
+                if(group && sawRow && !groupTogether(key, lastKey, groupLevel)) {
+                    // This pair starts a new group, so reduce & record the last one:
+                    Object reduced = finishReduce(keysToReduce, valuesToReduce, partialReductions);
                     Map<String,Object> row = new HashMap<String,Object>();
-                    String docId = cursor.getString(2);
-                    Map<String,Object> docContents = null;
-                    if(options.isIncludeDocs()) {
-                        docContents = db.documentPropertiesFromJSON(cursor.getBlob(4), docId, cursor.getString(3), cursor.getLong(5), options.getContentOptions());
-                    }
-                    row.put("id", docId);
-                    row.put("key", key);
-                    if(value != null) {
-                        row.put("value", value);
-                    }
-                    if(docContents != null) {
-                        row.put("doc", docContents);
+                    row.put("key", groupKey(lastKey, groupLevel));
+                    if(reduced != null) {
+                        row.put("value", reduced);
                     }
                     rows.add(row);
                 }
-
+                keysToReduce.add(key);
+                valuesToReduce.add(value);
+                lastKey = key;
+                sawRow = true;
+                if(keysToReduce.size() >= REDUCE_BATCH_SIZE) {
+                    reduceBatch(keysToReduce, valuesToReduce, partialReductions);
+                }
 
                 cursor.moveToNext();
             }
 
-            if(reduce) {
-                if(keysToReduce.size() > 0) {
-                    // Finish the last group (or the entire list, if no grouping):
-                    Object key = group ? groupKey(lastKey, groupLevel) : null;
-                    Object reduced = (reduceBlock != null) ? reduceBlock.reduce(keysToReduce, valuesToReduce, false) : null;
-                    Map<String,Object> row = new HashMap<String,Object>();
-                    row.put("key", key);
-                    if(reduced != null) {
-                        row.put("value", reduced);
-                    }
-                    rows.add(row);
+            if(sawRow) {
+                // Finish the last group (or the entire list, if no grouping):
+                Object key = group ? groupKey(lastKey, groupLevel) : null;
+                Object reduced = finishReduce(keysToReduce, valuesToReduce, partialReductions);
+                Map<String,Object> row = new HashMap<String,Object>();
+                row.put("key", key);
+                if(reduced != null) {
+                    row.put("value", reduced);
                 }
-                keysToReduce.clear();
-                valuesToReduce.clear();
+                rows.add(row);
             }
 
             status.setCode(TDStatus.OK);
@@ -676,6 +1137,189 @@ public class TDView {
         return rows;
     }
 
+    /**
+     * Reduces the rows of a query with a built-in reduce function in SQL, as a single aggregate
+     * or one per distinct key, so that no row's key or value has to be parsed. Skip and limit
+     * apply to the rows being reduced, as they do when reducing in Java. Returns null if a value
+     * isn't a number, for the rows to be reduced in Java instead.
+     */
+    private List<Map<String, Object>> builtinReduceWithOptions(TDBuiltinReduceBlock builtin, TDQueryOptions options, boolean group) {
+        List<String> argsList = new ArrayList<String>();
+        String sql = "SELECT " + (group ? "key, " : "") + TDBuiltinReduceBlock.SQL_AGGREGATES
+                + " FROM (" + rowQuery("key, value, sort_key", options, 0, argsList) + ")";
+        if(group) {
+            sql = sql + " GROUP BY sort_key ORDER BY sort_key" + (options.isDescending() ? " DESC" : "");
+        }
+
+        Log.v(TDDatabase.TAG, "Query " + name + ": " + sql);
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String,Object>>();
+        Cursor cursor = null;
+        try {
+            cursor = db.getDatabase().rawQuery(sql, argsList.toArray(new String[argsList.size()]));
+            int column = group ? 1 : 0;
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()) {
+                if(!builtin.canReduceAggregates(cursor, column)) {
+                    return null;
+                }
+                // Without grouping there is always one result row, but no rows means no reduction:
+                if(cursor.getLong(column) > 0) {
+                    Map<String,Object> row = new HashMap<String,Object>();
+                    row.put("key", group ? fromJSON(cursor.getBlob(0)) : null);
+                    row.put("value", builtin.reducedAggregates(cursor, column));
+                    rows.add(row);
+                }
+                cursor.moveToNext();
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Reduces a full batch of a group's rows to a partial reduction, and clears the batch. Once
+     * there is a batch's worth of partial reductions they are re-reduced into one, so the memory
+     * used stays bounded however many rows the group has.
+     */
+    private void reduceBatch(List<Object> keys, List<Object> values, List<Object> partialReductions) {
+        if(reduceBlock != null) {
+            partialReductions.add(reduceBlock.reduce(keys, values, false));
+            if(partialReductions.size() >= REDUCE_BATCH_SIZE) {
+                Object reduced = reduceBlock.reduce(null, partialReductions, true);
+                partialReductions.clear();
+                partialReductions.add(reduced);
+            }
+        }
+        keys.clear();
+        values.clear();
+    }
+
+    /**
+     * Returns the reduction of a group from its remaining rows and any partial reductions of its
+     * earlier batches, and clears them for the next group.
+     */
+    private Object finishReduce(List<Object> keys, List<Object> values, List<Object> partialReductions) {
+        Object reduced = null;
+        if(reduceBlock != null) {
+            if(partialReductions.size() == 0) {
+                reduced = reduceBlock.reduce(keys, values, false);
+            } else {
+                if(keys.size() > 0) {
+                    partialReductions.add(reduceBlock.reduce(keys, values, false));
+                }
+                reduced = reduceBlock.reduce(null, partialReductions, true);
+            }
+        }
+        keys.clear();
+        values.clear();
+        partialReductions.clear();
+        return reduced;
+    }
+
+    /**
+     * Reduces the entire index by re-reducing the persisted partial reductions of its blocks of
+     * sequences, first computing (and persisting) those of blocks that changed since they were
+     * last used.
+     */
+    private List<Map<String, Object>> reduceAllRows(TDStatus status) {
+        SQLiteDatabase database = db.getDatabase();
+        String viewIdString = Integer.toString(getViewId());
+        long lastBlock = getLastSequenceIndexed() / REDUCTION_BLOCK_SIZE;
+        List<Object> blockValues = new ArrayList<Object>();
+
+        Cursor cursor = null;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            Map<Long, String> storedValues = new HashMap<Long, String>();
+            String[] args = { viewIdString };
+            cursor = database.rawQuery("SELECT block, value FROM reductions WHERE view_id=?", args);
+            cursor.moveToFirst();
+            while (!cursor.isAfterLast()) {
+                storedValues.put(cursor.getLong(0), cursor.getString(1));
+                cursor.moveToNext();
+            }
+            cursor.close();
+            cursor = null;
+
+            for (long block = 0; block <= lastBlock; block++) {
+                String valueJSON;
+                if (storedValues.containsKey(block)) {
+                    valueJSON = storedValues.get(block);
+                } else {
+                    valueJSON = reduceBlockOfRows(block);
+                    ContentValues insertValues = new ContentValues();
+                    insertValues.put("view_id", getViewId());
+                    insertValues.put("block", block);
+                    insertValues.put("value", valueJSON);
+                    database.insertOrThrow("reductions", null, insertValues);
+                }
+                // A block without any rows has no value:
+                if (valueJSON != null) {
+                    blockValues.add(fromJSON(valueJSON.getBytes()));
+                }
+            }
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error reducing view", e);
+            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            db.endTransaction(success);
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String,Object>>();
+        if (blockValues.size() > 0) {
+            Object reduced = reduceBlock.reduce(null, blockValues, true);
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("key", null);
+            if(reduced != null) {
+                row.put("value", reduced);
+            }
+            rows.add(row);
+        }
+        status.setCode(TDStatus.OK);
+        return rows;
+    }
+
+    /**
+     * Reduces the rows emitted by one block of sequences, returning the JSON of the result, or
+     * null if the block has no rows.
+     */
+    private String reduceBlockOfRows(long block) {
+        String[] args = { Integer.toString(getViewId()),
+                Long.toString(block * REDUCTION_BLOCK_SIZE),
+                Long.toString((block + 1) * REDUCTION_BLOCK_SIZE) };
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        Cursor cursor = null;
+        try {
+            cursor = db.getDatabase().rawQuery("SELECT key, value FROM maps WHERE view_id=? AND sequence>=? AND sequence<?", args);
+            cursor.moveToFirst();
+            while (!cursor.isAfterLast()) {
+                keys.add(fromJSON(cursor.getBlob(0)));
+                values.add(fromJSON(cursor.getBlob(1)));
+                cursor.moveToNext();
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (keys.size() == 0) {
+            return null;
+        }
+        Object reduced = reduceBlock.reduce(keys, values, false);
+        return (reduced != null) ? toJSONString(reduced) : "null";
+    }
+
     /**
      * Utility function to use in reduce blocks. Totals an array of Numbers.
      */
@@ -702,12 +1346,240 @@ public class TDView {
 
 }
 
+/**
+ * Rows emitted while mapping a batch of documents, already serialized to JSON.
+ */
+class MapRowBuffer {
+
+    private List<Integer> viewIds = new ArrayList<Integer>();
+    private List<Long> sequences = new ArrayList<Long>();
+    private List<String> docIds = new ArrayList<String>();
+    private List<String> keys = new ArrayList<String>();
+    private List<byte[]> sortKeys = new ArrayList<byte[]>();
+    private List<String> values = new ArrayList<String>();
+
+    void add(int viewId, long sequence, String docId, String keyJson, byte[] sortKey, String valueJson) {
+        viewIds.add(viewId);
+        sequences.add(sequence);
+        docIds.add(docId);
+        keys.add(keyJson);
+        sortKeys.add(sortKey);
+        values.add(valueJson);
+    }
+
+    int getViewId(int i) {
+        return viewIds.get(i);
+    }
+
+    int size() {
+        return sequences.size();
+    }
+
+    long getSequence(int i) {
+        return sequences.get(i);
+    }
+
+    String getDocId(int i) {
+        return docIds.get(i);
+    }
+
+    String getKey(int i) {
+        return keys.get(i);
+    }
+
+    byte[] getSortKey(int i) {
+        return sortKeys.get(i);
+    }
+
+    String getValue(int i) {
+        return values.get(i);
+    }
+
+}
+
+/**
+ * Inserts emitted rows into the maps table with a precompiled statement. (Multi-row
+ * INSERT ... VALUES needs SQLite 3.7.11, newer than the one in the Android versions we
+ * support, so each row is still one execution.)
+ */
+class MapRowInserter {
+
+    private SQLiteStatement statement;
+    private int insertedCount = 0;
+
+    MapRowInserter(SQLiteDatabase database) {
+        this.statement = database.compileStatement("INSERT INTO maps (view_id, sequence, key, value, sort_key, docid) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    int getInsertedCount() {
+        return insertedCount;
+    }
+
+    void insert(MapRowBuffer rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            statement.bindLong(1, rows.getViewId(i));
+            statement.bindLong(2, rows.getSequence(i));
+            statement.bindString(3, rows.getKey(i));
+            statement.bindString(4, rows.getValue(i));
+            statement.bindBlob(5, rows.getSortKey(i));
+            statement.bindString(6, rows.getDocId(i));
+            statement.executeInsert();
+        }
+        insertedCount += rows.size();
+    }
+
+    void close() {
+        statement.close();
+    }
+
+}
+
+/**
+ * A batch of documents to run the map blocks of one or more views on, with its own emit blocks
+ * and row buffer, so that batches can be mapped on different threads. Each document is parsed
+ * once, and only mapped by the views that haven't indexed its sequence yet. Doesn't touch the
+ * database.
+ */
+class MapBatch implements Callable<MapRowBuffer> {
+
+    private List<TDView> views;
+    private List<Long> lastSequences;
+    private boolean logVerbose;
+    private List<Long> sequences = new ArrayList<Long>(TDView.MAP_BATCH_SIZE);
+    private List<String> docIds = new ArrayList<String>(TDView.MAP_BATCH_SIZE);
+    private List<byte[]> jsons = new ArrayList<byte[]>(TDView.MAP_BATCH_SIZE);
+    private List<Map<String, Object>> extras = new ArrayList<Map<String, Object>>(TDView.MAP_BATCH_SIZE);
+
+    MapBatch(List<TDView> views, List<Long> lastSequences, boolean logVerbose) {
+        this.views = views;
+        this.lastSequences = lastSequences;
+        this.logVerbose = logVerbose;
+    }
+
+    /**
+     * Adds a document, as its JSON plus the extra properties (_id, _rev, ...) to merge into it.
+     */
+    void add(long sequence, String docId, byte[] json, Map<String, Object> extra) {
+        sequences.add(sequence);
+        docIds.add(docId);
+        jsons.add(json);
+        extras.add(extra);
+    }
+
+    int size() {
+        return sequences.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public MapRowBuffer call() {
+        final MapRowBuffer rows = new MapRowBuffer();
+        final ObjectMapper mapper = TDServer.getObjectMapper();
+
+        // These are the emit() blocks, one per view, which get called from
+        // within the user-defined map() blocks. They only serialize and
+        // buffer the row.
+        AbstractTouchMapEmitBlock[] emitBlocks = new AbstractTouchMapEmitBlock[views.size()];
+        for (int v = 0; v < views.size(); v++) {
+            final int viewId = views.get(v).getViewId();
+            final TDView.TDViewCollation collation = views.get(v).getCollation();
+            emitBlocks[v] = new AbstractTouchMapEmitBlock() {
+
+                @Override
+                public void emit(Object key, Object value) {
+
+                    try {
+                        String keyJson = mapper.writeValueAsString(key);
+                        String valueJson = mapper.writeValueAsString(value);
+                        if (logVerbose) {
+                            Log.v(TDDatabase.TAG, "    emit(" + keyJson + ", "
+                                    + valueJson + ")");
+                        }
+
+                        byte[] sortKey = TDViewSortKey.sortKeyForJSON(keyJson, collation);
+                        rows.add(viewId, sequence, docId, keyJson, sortKey, valueJson);
+                    } catch (Exception e) {
+                        Log.e(TDDatabase.TAG, "Error emitting", e);
+                        // find a better way to propogate this back
+                    }
+                }
+            };
+        }
+
+        for (int i = 0; i < sequences.size(); i++) {
+            long sequence = sequences.get(i);
+
+            // Reconstitute the document as a dictionary:
+            Map<String, Object> properties = extras.get(i);
+            byte[] json = jsons.get(i);
+            if (json != null) {
+                try {
+                    properties = mapper.readValue(json, Map.class);
+                    properties.putAll(extras.get(i));
+                } catch (Exception e) {
+                    Log.e(TDDatabase.TAG, "Error parsing JSON of sequence " + sequence, e);
+                    continue;
+                }
+            }
+
+            // Call the user-defined map() of each view to emit new key/value
+            // pairs from this revision. A map block may modify the properties,
+            // so each view but the last to be called gets a copy of its own:
+            int lastView = views.size() - 1;
+            while (lastView >= 0 && sequence <= lastSequences.get(lastView)) {
+                lastView--;
+            }
+            for (int v = 0; v <= lastView; v++) {
+                if (sequence <= lastSequences.get(v)) {
+                    continue;
+                }
+                if (logVerbose) {
+                    Log.v(TDDatabase.TAG,
+                            "  call map of " + views.get(v).getName() + " for sequence="
+                                    + Long.toString(sequence));
+                }
+                emitBlocks[v].setDocument(sequence, docIds.get(i));
+                Map<String, Object> viewProperties = (v < lastView) ? (Map<String, Object>) copyOf(properties) : properties;
+                views.get(v).getMapBlock().map(viewProperties, emitBlocks[v]);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Copies the maps and lists of parsed JSON; other values are immutable and are shared.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyOf(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            Map<String, Object> result = new LinkedHashMap<String, Object>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                result.put(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return result;
+        }
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            List<Object> result = new ArrayList<Object>(list.size());
+            for (Object element : list) {
+                result.add(copyOf(element));
+            }
+            return result;
+        }
+        return value;
+    }
+
+}
+
 abstract class AbstractTouchMapEmitBlock implements TDViewMapEmitBlock {
 
     protected long sequence = 0;
+    protected String docId;
 
-    void setSequence(long sequence) {
+    void setDocument(long sequence, String docId) {
         this.sequence = sequence;
+        this.docId = docId;
     }
 
 }
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.Observable;
+import java.util.Observer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps a view's index up to date in the background, so that queries normally find it current.
+ * It observes the database's changes and, once they have paused for the debounce delay (or have
+ * kept coming for the maximum delay), updates the index on its own thread in batches of
+ * BATCH_SIZE sequences, each in its own transaction. Views of the same design document are
+ * updated along with the view, as by TDView.updateIndex.
+ */
+public class TDViewIndexer implements Observer {
+
+    public static final int DEFAULT_DEBOUNCE_DELAY = 500;     // ms
+    public static final int DEFAULT_MAX_DELAY = 5 * 1000;     // ms
+    public static final int BATCH_SIZE = 1000;                // sequences per transaction
+
+    private TDView view;
+    private TDDatabase db;
+    private HandlerThread handlerThread;
+    private Handler handler;
+    private int debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+    private int maxDelay = DEFAULT_MAX_DELAY;
+    private long firstPendingChange = 0;   // uptime of the oldest change not yet scheduled for indexing
+    private volatile boolean indexing = false;
+
+    private Runnable indexRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized(TDViewIndexer.this) {
+                firstPendingChange = 0;
+            }
+            indexing = true;
+            try {
+                TDStatus status = TDView.updateIndexes(view.getViewsInGroup(), BATCH_SIZE);
+                if(!status.isSuccessful()) {
+                    Log.w(TDDatabase.TAG, "Background indexing of view " + view.getName() + " failed: " + status.getCode());
+                } else if(status.getCode() == TDStatus.OK && view.isStale()) {
+                    // More to do; give other users of the database a turn between batches:
+                    Handler h = handler;
+                    if(h != null) {
+                        h.post(this);
+                    }
+                }
+            } catch(Exception e) {
+                // we don't want this to kill the handler thread
+                Log.e(TDDatabase.TAG, "Error indexing view " + view.getName() + " in the background", e);
+            } finally {
+                indexing = false;
+            }
+        }
+    };
+
+    public TDViewIndexer(TDView view) {
+        this.view = view;
+        this.db = view.getDb();
+    }
+
+    public int getDebounceDelay() {
+        return debounceDelay;
+    }
+
+    /**
+     * Sets how long (in ms) the database has to go without changes before the index is updated.
+     */
+    public void setDebounceDelay(int debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    public int getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the longest (in ms) a change can wait to be indexed while further changes keep coming.
+     */
+    public void setMaxDelay(int maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public void start() {
+        handlerThread = new HandlerThread("TDViewIndexer HandlerThread for " + view.getName());
+        handlerThread.start();
+        //Get the looper from the handlerThread
+        Looper looper = handlerThread.getLooper();
+        //Create a new handler - passing in the looper for it to use
+        handler = new Handler(looper);
+
+        db.addObserver(this);
+        if(view.isStale()) {
+            handler.post(indexRunnable);
+        }
+    }
+
+    /**
+     * Stops indexing. If a batch is being indexed, waits for it to finish, so that once this
+     * returns the indexer no longer uses the database and it can be closed.
+     */
+    public void stop() {
+        db.deleteObserver(this);
+        if(handler != null) {
+            handler.removeCallbacks(indexRunnable);
+            handler = null;
+        }
+        if(handlerThread != null) {
+            //Shut down the HandlerThread
+            HandlerThread thread = handlerThread;
+            handlerThread = null;
+            thread.quit();
+            if(Thread.currentThread() != thread) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the index as soon as possible, without waiting for the debounce delay.
+     */
+    public void scheduleUpdate() {
+        Handler h = handler;
+        if(h != null) {
+            h.removeCallbacks(indexRunnable);
+            h.post(indexRunnable);
+        }
+    }
+
+    /**
+     * Is the indexer currently updating the index?
+     */
+    public boolean isIndexing() {
+        return indexing;
+    }
+
+    /**
+     * The number of sequences the index is currently behind the database.
+     */
+    public long getLag() {
+        return view.getIndexLag();
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        Handler h = handler;
+        if(observable != db || h == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long delay = debounceDelay;
+        synchronized(this) {
+            if(firstPendingChange == 0) {
+                firstPendingChange = now;
+            }
+            delay = Math.max(0, Math.min(delay, firstPendingChange + maxDelay - now));
+        }
+        // Restart the debounce interval, unless the oldest change has waited too long already:
+        h.removeCallbacks(indexRunnable);
+        h.postDelayed(indexRunnable, delay);
+    }
+
+}
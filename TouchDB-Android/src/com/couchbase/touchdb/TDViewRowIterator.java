@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+
+import com.couchbase.touchdb.TDDatabase.TDContentOptions;
+
+/**
+ * Iterates over the rows of a view query that doesn't reduce, reading and parsing each row only
+ * when it's asked for (or a batch of them, with their documents), so that a large result never
+ * has to be held in memory at once. Each row is a dictionary with "id", "key" and "value" keys,
+ * and possibly "doc".
+ *
+ * It wraps a database cursor, so it must be used on the thread that created it, and closed when
+ * done with.
+ */
+public class TDViewRowIterator implements Iterator<Map<String, Object>> {
+
+    /** Number of rows read at a time when their documents are included. */
+    public static final int DOC_BATCH_SIZE = 100;
+
+    private TDDatabase db;
+    private TDQueryOptions options;
+    private Cursor cursor;
+    private LinkedList<Map<String, Object>> bufferedRows = new LinkedList<Map<String, Object>>();
+
+    TDViewRowIterator(TDDatabase db, Cursor cursor, TDQueryOptions options) {
+        this.db = db;
+        this.cursor = cursor;
+        this.options = options;
+        cursor.moveToFirst();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !bufferedRows.isEmpty() || (cursor != null && !cursor.isAfterLast());
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if(bufferedRows.isEmpty()) {
+            readRows();
+        }
+        return bufferedRows.removeFirst();
+    }
+
+    /**
+     * Reads the next row, or the next DOC_BATCH_SIZE rows if documents are included, so that
+     * their attachments are loaded with one query rather than one per row.
+     */
+    private void readRows() {
+        boolean includeDocs = options.isIncludeDocs();
+        int count = includeDocs ? DOC_BATCH_SIZE : 1;
+        List<String> revIds = new ArrayList<String>();
+        List<byte[]> jsons = new ArrayList<byte[]>();
+        List<Long> sequences = new ArrayList<Long>();
+        for(int i = 0; i < count && !cursor.isAfterLast(); i++) {
+            Object key = TDView.fromJSON(cursor.getBlob(0));
+            Object value = TDView.fromJSON(cursor.getBlob(1));
+            assert(key != null);
+            String docId = cursor.getString(2);
+            if(includeDocs) {
+                revIds.add(cursor.getString(3));
+                jsons.add(cursor.getBlob(4));
+                sequences.add(cursor.getLong(5));
+            }
+            cursor.moveToNext();
+
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("id", docId);
+            row.put("key", key);
+            if(value != null) {
+                row.put("value", value);
+            }
+            bufferedRows.add(row);
+        }
+
+        if(includeDocs) {
+            EnumSet<TDContentOptions> contentOptions = options.getContentOptions();
+            Map<Long,Map<String,Object>> attachmentsDicts = db.getAttachmentsDictsForSequences(sequences, contentOptions);
+            int i = 0;
+            for(Map<String,Object> row : bufferedRows) {
+                Long sequence = sequences.get(i);
+                Map<String,Object> docContents = db.documentPropertiesFromJSON(jsons.get(i), (String)row.get("id"),
+                        revIds.get(i), sequence, contentOptions, attachmentsDicts.get(sequence));
+                if(docContents != null) {
+                    row.put("doc", docContents);
+                }
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        if(cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        bufferedRows.clear();
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.couchbase.touchdb.TDView.TDViewCollation;
+
+/**
+ * Encodes JSON view keys as binary sort keys, whose unsigned byte-by-byte (memcmp) order is the
+ * order TDCollateJSON gives their JSON in the same collation. The maps table stores them, so that
+ * SQLite can index, sort and range-query view keys with its built-in BLOB comparison instead of
+ * calling the JSON collator for every comparison.
+ *
+ * A key is encoded as the same series of tokens the collator steps through: each token is a byte
+ * giving its type's place in the collation order, followed for numbers and strings by their value.
+ * Numbers are big-endian doubles with their sign bit flipped (and the rest of the bits too, when
+ * negative). Strings are their Unicode collation key, or their UTF-8 bytes in the ASCII and raw
+ * collations, escaped so that they contain no zero byte and then ended by one.
+ */
+public class TDViewSortKey {
+
+    // Token types, as their places in CouchDB's default collation order (as in TDCollateJSON):
+    private static final int kEndArray = 0;
+    private static final int kEndObject = 1;
+    private static final int kComma = 2;
+    private static final int kColon = 3;
+    private static final int kNull = 4;
+    private static final int kFalse = 5;
+    private static final int kTrue = 6;
+    private static final int kNumber = 7;
+    private static final int kString = 8;
+    private static final int kArray = 9;
+    private static final int kObject = 10;
+
+    // Places of the token types in the "raw" collation order, indexed by the above:
+    private static final byte[] kRawOrderOfType = { 0, 1, 2, 3, 6, 5, 7, 4, 10, 9, 8 };
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private TDViewCollation collation;
+    private ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+
+    private TDViewSortKey(TDViewCollation collation) {
+        this.collation = collation;
+    }
+
+    /**
+     * Returns the sort key of a JSON-encoded view key, in the given collation.
+     */
+    public static byte[] sortKeyForJSON(String json, TDViewCollation collation) {
+        TDViewSortKey sortKey = new TDViewSortKey(collation);
+        try {
+            JsonParser parser = factory.createJsonParser(json);
+            try {
+                sortKey.appendValue(parser, parser.nextToken());
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON view key: " + json);
+        }
+        return sortKey.out.toByteArray();
+    }
+
+    /**
+     * Returns the sort key of a view key, in the given collation.
+     */
+    public static byte[] sortKeyForKey(Object key, TDViewCollation collation) {
+        String json = (key != null) ? TDView.toJSONString(key) : "null";
+        return sortKeyForJSON(json, collation);
+    }
+
+    /**
+     * Compares two sort keys as SQLite compares BLOBs.
+     */
+    public static int compare(byte[] key1, byte[] key2) {
+        int length = Math.min(key1.length, key2.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (diff != 0) {
+                return diff > 0 ? 1 : -1;
+            }
+        }
+        return key1.length == key2.length ? 0 : (key1.length > key2.length ? 1 : -1);
+    }
+
+    private void appendValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == null) {
+            throw new IOException("Unexpected end of JSON");
+        }
+        switch (token) {
+        case VALUE_NULL:
+            appendType(kNull);
+            break;
+        case VALUE_FALSE:
+            appendType(kFalse);
+            break;
+        case VALUE_TRUE:
+            appendType(kTrue);
+            break;
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            appendType(kNumber);
+            appendNumber(parser.getDoubleValue());
+            break;
+        case VALUE_STRING:
+            appendType(kString);
+            appendString(parser.getText());
+            break;
+        case START_ARRAY:
+            appendType(kArray);
+            boolean first = true;
+            for (token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (!first) {
+                    appendType(kComma);
+                }
+                appendValue(parser, token);
+                first = false;
+            }
+            appendType(kEndArray);
+            break;
+        case START_OBJECT:
+            appendType(kObject);
+            first = true;
+            for (token = parser.nextToken(); token != JsonToken.END_OBJECT; token = parser.nextToken()) {
+                if (token != JsonToken.FIELD_NAME) {
+                    throw new IOException("Unexpected JSON token " + token);
+                }
+                if (!first) {
+                    appendType(kComma);
+                }
+                appendType(kString);
+                appendString(parser.getCurrentName());
+                appendType(kColon);
+                appendValue(parser, parser.nextToken());
+                first = false;
+            }
+            appendType(kEndObject);
+            break;
+        default:
+            throw new IOException("Unexpected JSON token " + token);
+        }
+    }
+
+    private void appendType(int type) {
+        out.write(collation == TDViewCollation.TDViewCollationRaw ? kRawOrderOfType[type] : type);
+    }
+
+    private void appendNumber(double number) {
+        if (number == 0.0) {
+            number = 0.0;   // -0.0 collates equal to 0.0
+        }
+        long bits = Double.doubleToLongBits(number);
+        bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int)(bits >>> shift));
+        }
+    }
+
+    private void appendString(String string) throws UnsupportedEncodingException {
+        byte[] bytes;
+        if (collation == TDViewCollation.TDViewCollationUnicode) {
+            bytes = TDCollateJSON.getCollator().getCollationKey(string).toByteArray();
+        } else {
+            bytes = string.getBytes("UTF-8");
+        }
+        // Escape 0 as 1,1 and 1 as 1,2, so that the 0 ending the string sorts before any byte of it:
+        for (byte b : bytes) {
+            if (b == 0 || b == 1) {
+                out.write(1);
+                out.write(b + 1);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(0);
+    }
+
+}
@@ -233,7 +233,7 @@ public class TDPuller extends TDReplicator implements TDChangeTrackerClient {
         //create a final version of this variable for the log statement inside
         //FIXME find a way to avoid this
         final String pathInside = path;
-        sendAsyncRequest("GET", path, null, new TDRemoteRequestCompletionBlock() {
+        sendAsyncDocumentRequest(path, new TDRemoteRequestCompletionBlock() {
 
             @Override
             public void onCompletion(Object result, Throwable e) {
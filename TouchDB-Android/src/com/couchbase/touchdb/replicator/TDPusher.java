@@ -26,6 +26,7 @@ public class TDPusher extends TDReplicator implements Observer {
     private boolean createTarget;
     private boolean observing;
     private TDFilterBlock filter;
+    private boolean sendEncodedAttachments;
 
     public TDPusher(TDDatabase db, URL remote, boolean continuous) {
         this(db, remote, continuous, null);
@@ -45,6 +46,14 @@ public class TDPusher extends TDReplicator implements Observer {
         this.filter = filter;
     }
 
+    /**
+     * If true, attachments stored gzipped are pushed still compressed, tagged "encoding":"gzip".
+     * Only enable this if the target understands encoded inline attachments (e.g. TouchDB).
+     */
+    public void setSendEncodedAttachments(boolean sendEncodedAttachments) {
+        this.sendEncodedAttachments = sendEncodedAttachments;
+    }
+
     @Override
     public boolean isPush() {
         return true;
@@ -174,7 +183,12 @@ public class TDPusher extends TDReplicator implements Observer {
                                 } else {
                                     // OPT: Shouldn't include all attachment bodies, just ones that have changed
                                     // OPT: Should send docs with many or big attachments as multipart/related
-                                    TDStatus status = db.loadRevisionBody(rev, EnumSet.of(TDDatabase.TDContentOptions.TDIncludeAttachments));
+                                    EnumSet<TDDatabase.TDContentOptions> contentOptions = EnumSet.of(TDDatabase.TDContentOptions.TDIncludeAttachments,
+                                            TDDatabase.TDContentOptions.TDStreamAttachments);
+                                    if(sendEncodedAttachments) {
+                                        contentOptions.add(TDDatabase.TDContentOptions.TDLeaveAttachmentsEncoded);
+                                    }
+                                    TDStatus status = db.loadRevisionBody(rev, contentOptions);
                                     if(!status.isSuccessful()) {
                                         Log.w(TDDatabase.TAG, String.format("%s: Couldn't get local contents of %s", this, rev));
                                     } else {
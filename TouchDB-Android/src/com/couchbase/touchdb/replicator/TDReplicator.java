@@ -23,6 +23,7 @@ import com.couchbase.touchdb.TDRevisionList;
 import com.couchbase.touchdb.support.HttpClientFactory;
 import com.couchbase.touchdb.support.TDBatchProcessor;
 import com.couchbase.touchdb.support.TDBatcher;
+import com.couchbase.touchdb.support.TDRemoteDocumentRequest;
 import com.couchbase.touchdb.support.TDRemoteRequest;
 import com.couchbase.touchdb.support.TDRemoteRequestCompletionBlock;
 
@@ -235,6 +236,22 @@ public abstract class TDReplicator extends Observable {
         }
     }
 
+    /**
+     * GETs a single document, streaming the contents of its inline attachments into the
+     * local database's blob store as the response is parsed.
+     */
+    public void sendAsyncDocumentRequest(String relativePath, TDRemoteRequestCompletionBlock onCompletion) {
+        Log.v(TDDatabase.TAG, String.format("%s: GET .%s", toString(), relativePath));
+        String urlStr = remote.toExternalForm() + relativePath;
+        try {
+            URL url = new URL(urlStr);
+            TDRemoteRequest request = new TDRemoteDocumentRequest(clientFacotry, "GET", url, db.getAttachments(), onCompletion);
+            request.start();
+        } catch (MalformedURLException e) {
+            Log.e(TDDatabase.TAG, "Malformed URL for async request", e);
+        }
+    }
+
     /** CHECKPOINT STORAGE: **/
 
     public void maybeCreateRemoteDB() {
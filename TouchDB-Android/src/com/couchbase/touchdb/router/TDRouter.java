@@ -19,15 +19,20 @@ import java.util.Observer;
 
 import org.codehaus.jackson.map.ObjectMapper;
 
+import android.database.SQLException;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDAttachment;
+import com.couchbase.touchdb.TDAttachment.TDAttachmentEncoding;
 import com.couchbase.touchdb.TDBody;
 import com.couchbase.touchdb.TDChangesOptions;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDDatabase.TDContentOptions;
+import com.couchbase.touchdb.TDDocumentReader;
 import com.couchbase.touchdb.TDFilterBlock;
 import com.couchbase.touchdb.TDMisc;
 import com.couchbase.touchdb.TDQueryOptions;
+import com.couchbase.touchdb.TDQueryOptions.TDStaleness;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDRevisionList;
 import com.couchbase.touchdb.TDServer;
@@ -36,6 +41,7 @@ import com.couchbase.touchdb.TDView;
 import com.couchbase.touchdb.TDView.TDViewCollation;
 import com.couchbase.touchdb.TDViewMapBlock;
 import com.couchbase.touchdb.TDViewReduceBlock;
+import com.couchbase.touchdb.TDViewRowIterator;
 import com.couchbase.touchdb.TouchDBVersion;
 import com.couchbase.touchdb.replicator.TDPuller;
 import com.couchbase.touchdb.replicator.TDPusher;
@@ -43,6 +49,12 @@ import com.couchbase.touchdb.replicator.TDReplicator;
 
 
 public class TDRouter implements Observer {
+
+    /**
+     * Number of bytes of streamed view rows to collect before passing them to the callback block.
+     */
+    public static final int VIEW_STREAM_BUFFER_SIZE = 8 * 1024;
+
     private TDServer server;
     private TDDatabase db;
     private TDURLConnection connection;
@@ -53,6 +65,7 @@ public class TDRouter implements Observer {
     private boolean waiting = false;
     private TDFilterBlock changesFilter;
     private boolean longpoll = false;
+    private boolean streamViewRows = false;
 
     public static String getVersionString() {
         return TouchDBVersion.TouchDBVersionNumber;
@@ -67,6 +80,15 @@ public class TDRouter implements Observer {
         this.callbackBlock = callbackBlock;
     }
 
+    /**
+     * Sets whether the rows of view queries are written to the callback block as they're read,
+     * in a chunked response. Only enable this when the callback block's consumer reads the
+     * response on another thread, since the router writes the whole response before returning.
+     */
+    public void setStreamViewRows(boolean streamViewRows) {
+        this.streamViewRows = streamViewRows;
+    }
+
     public Map<String,String> getQueries() {
         if(queries == null) {
             String queryString = connection.getURL().getQuery();
@@ -149,6 +171,20 @@ public class TDRouter implements Observer {
         }
     }
 
+    /**
+     * Parses the body as a document, streaming the contents of any inline attachments
+     * into the database's blob store rather than into the returned properties.
+     */
+    public Map<String,Object> getBodyAsDocument() {
+        try {
+            byte[] bodyBytes = ((ByteArrayOutputStream)connection.getOutputStream()).toByteArray();
+            return new TDDocumentReader(db.getAttachments()).readDocument(bodyBytes);
+        } catch (IOException e) {
+            Log.w(TDDatabase.TAG, "Unable to parse document body", e);
+            return null;
+        }
+    }
+
     public byte[] getBody() {
         try {
             byte[] bodyBytes = ((ByteArrayOutputStream)connection.getOutputStream()).toByteArray();
@@ -162,6 +198,7 @@ public class TDRouter implements Observer {
         EnumSet<TDContentOptions> result = EnumSet.noneOf(TDContentOptions.class);
         if(getBooleanQuery("attachments")) {
             result.add(TDContentOptions.TDIncludeAttachments);
+            result.add(TDContentOptions.TDStreamAttachments);
         }
         if(getBooleanQuery("local_seq")) {
             result.add(TDContentOptions.TDIncludeLocalSeq);
@@ -194,12 +231,24 @@ public class TDRouter implements Observer {
         options.setContentOptions(getContentOptions());
         options.setStartKey(getJSONQuery("startkey"));
         options.setEndKey(getJSONQuery("endkey"));
+        options.setStartKeyDocId(getQuery("startkey_docid"));
+        options.setEndKeyDocId(getQuery("endkey_docid"));
         Object key = getJSONQuery("key");
         if(key != null) {
             List<Object> keys = new ArrayList<Object>();
             keys.add(key);
             options.setKeys(keys);
         }
+        String stale = getQuery("stale");
+        if(stale != null) {
+            if(stale.equals("ok")) {
+                options.setStale(TDStaleness.TDStaleOK);
+            } else if(stale.equals("update_after")) {
+                options.setStale(TDStaleness.TDStaleUpdateAfter);
+            } else {
+                return false;
+            }
+        }
         return true;
     }
 
@@ -240,6 +289,38 @@ public class TDRouter implements Observer {
         return result;
     }
 
+    /**
+     * Does an Accept-Encoding header value accept the given content-coding? A coding is accepted
+     * if it's listed, or covered by "*", with a q-value above 0 ("gzip;q=0" refuses gzip).
+     */
+    public static boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if(acceptEncoding == null) {
+            return false;
+        }
+        float codingQ = -1, wildcardQ = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] params = item.split(";");
+            String name = params[0].trim();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if(param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if(name.equalsIgnoreCase(coding)) {
+                codingQ = q;
+            } else if(name.equals("*")) {
+                wildcardQ = q;
+            }
+        }
+        return (codingQ >= 0) ? codingQ > 0 : wildcardQ > 0;
+    }
+
     public void sendResponse() {
         if(!responseSent) {
             responseSent = true;
@@ -362,6 +443,12 @@ public class TDRouter implements Observer {
             Log.e(TDDatabase.TAG, "Exception in TDRouter", e);
         }
 
+        // A status of 0 means the handler sends the response itself (a feed, or streamed rows),
+        // and may already have, so there's nothing to check or send here:
+        if(status.getCode() == 0) {
+            return;
+        }
+
         // Configure response headers:
         if(status.isSuccessful() && connection.getResponseBody() == null && connection.getHeaderField("Content-Type") == null) {
             connection.setResponseBody(new TDBody("{\"ok\":true}".getBytes()));
@@ -383,16 +470,14 @@ public class TDRouter implements Observer {
 
         connection.getResHeader().add("Server", String.format("TouchDB %s", getVersionString()));
 
-        // If response is ready (nonzero status), tell my client about it:
-        if(status.getCode() != 0) {
-            connection.setResponseCode(status.getCode());
-            sendResponse();
-            if(callbackBlock != null && connection.getResponseBody() != null) {
-                callbackBlock.onDataAvailable(connection.getResponseBody().getJson());
-            }
-            if(callbackBlock != null && !waiting) {
-                callbackBlock.onFinish();
-            }
+        // The response is ready, so tell my client about it:
+        connection.setResponseCode(status.getCode());
+        sendResponse();
+        if(callbackBlock != null && connection.getResponseBody() != null) {
+            callbackBlock.onDataAvailable(connection.getResponseBody().getJson());
+        }
+        if(callbackBlock != null && !waiting) {
+            callbackBlock.onFinish();
         }
     }
 
@@ -610,7 +695,7 @@ public class TDRouter implements Observer {
         if(!status.isSuccessful()) {
             return status;
         }
-        return update(db, null, getBodyAsDictionary(), false);
+        return update(db, null, getBodyAsDocument(), false);
     }
 
     public TDStatus do_GET_Document_all_docs(TDDatabase _db, String _docID, String _attachmentName) {
@@ -925,8 +1010,35 @@ public class TDRouter implements Observer {
     }
 
     public TDStatus do_GET_Attachment(TDDatabase _db, String docID, String _attachmentName) {
-        //FIXME implement
-        throw new UnsupportedOperationException();
+        // http://wiki.apache.org/couchdb/HTTP_Document_API#Standalone_Attachments
+        TDRevision rev = db.getDocumentWithIDAndRev(docID, getQuery("rev"), EnumSet.noneOf(TDContentOptions.class));
+        if(rev == null) {
+            return new TDStatus(TDStatus.NOT_FOUND);
+        }
+
+        // Hand gzipped attachments over as-is if the client can decompress them itself. The body
+        // then depends on Accept-Encoding, so caches are told so, and such responses get an ETag
+        // of their own, lest a cache give gzipped data to a client that didn't ask for it:
+        String acceptEncoding = connection.getRequestProperty("Accept-Encoding");
+        boolean acceptsGzip = acceptsEncoding(acceptEncoding, "gzip");
+        connection.getResHeader().add("Vary", "Accept-Encoding");
+        if(cacheWithEtag(acceptsGzip ? rev.getRevId() + "-gzip" : rev.getRevId())) {
+            return new TDStatus(TDStatus.NOT_MODIFIED);  // set ETag and check conditional GET
+        }
+
+        TDStatus status = new TDStatus();
+        TDAttachment attachment = db.getAttachmentForSequence(rev.getSequence(), _attachmentName, acceptsGzip, status);
+        if(attachment == null) {
+            return status;
+        }
+        if(attachment.getContentType() != null) {
+            connection.getResHeader().add("Content-Type", attachment.getContentType());
+        }
+        if(attachment.getEncoding() == TDAttachmentEncoding.TDAttachmentEncodingGZIP) {
+            connection.getResHeader().add("Content-Encoding", "gzip");
+        }
+        connection.setResponseBody(new TDBody(attachment.getData()));
+        return status;
     }
 
     /**
@@ -1010,7 +1122,7 @@ public class TDRouter implements Observer {
     }
 
     public TDStatus do_PUT_Document(TDDatabase _db, String docID, String _attachmentName) {
-        Map<String,Object> bodyDict = getBodyAsDictionary();
+        Map<String,Object> bodyDict = getBodyAsDocument();
         if(bodyDict == null) {
             return new TDStatus(TDStatus.BAD_REQUEST);
         }
@@ -1119,6 +1231,15 @@ public class TDRouter implements Observer {
             if(view == null) {
                 return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
             }
+            // Compile the design doc's other views too, so they're all indexed in the same pass:
+            for (String otherViewName : views.keySet()) {
+                String otherTDViewName = String.format("%s/%s", designDoc, otherViewName);
+                TDView otherView = db.getExistingViewNamed(otherTDViewName);
+                Object otherViewProps = views.get(otherViewName);
+                if((otherView == null || otherView.getMapBlock() == null) && otherViewProps instanceof Map) {
+                    compileView(otherTDViewName, (Map<String,Object>)otherViewProps);
+                }
+            }
         }
 
         TDQueryOptions options = new TDQueryOptions();
@@ -1129,9 +1250,14 @@ public class TDRouter implements Observer {
             options.setKeys(keys);
         }
 
-        TDStatus status = view.updateIndex();
-        if(!status.isSuccessful()) {
-            return status;
+        TDStatus status;
+        if(options.getStale() == TDStaleness.TDStaleNever) {
+            status = view.updateIndex();
+            if(!status.isSuccessful()) {
+                return status;
+            }
+        } else {
+            status = new TDStatus(TDStatus.OK);
         }
 
         long lastSequenceIndexed = view.getLastSequenceIndexed();
@@ -1140,10 +1266,19 @@ public class TDRouter implements Observer {
         if(keys == null) {
             long eTag = options.isIncludeDocs() ? db.getLastSequence() : lastSequenceIndexed;
             if(cacheWithEtag(String.format("%d", eTag))) {
+                if(options.getStale() == TDStaleness.TDStaleUpdateAfter) {
+                    view.scheduleIndexUpdate();
+                }
                 return new TDStatus(TDStatus.NOT_MODIFIED);
             }
         }
 
+        // Stream the rows of a plain query to a client that can take the response incrementally:
+        boolean reduce = options.isReduce() || options.isGroup() || (options.getGroupLevel() > 0);
+        if(streamViewRows && callbackBlock != null && !reduce) {
+            return streamViewRows(view, options, lastSequenceIndexed);
+        }
+
         List<Map<String,Object>> rows = view.queryWithOptions(options, status);
         if(rows == null) {
             return status;
@@ -1157,10 +1292,91 @@ public class TDRouter implements Observer {
             responseBody.put("update_seq", lastSequenceIndexed);
         }
         connection.setResponseBody(new TDBody(responseBody));
+        if(options.getStale() == TDStaleness.TDStaleUpdateAfter) {
+            view.scheduleIndexUpdate();
+        }
         return new TDStatus(TDStatus.OK);
     }
 
+    /**
+     * Sends the response to a view query that doesn't reduce as a chunked response, writing the
+     * rows to the callback block as they're read from the index instead of building the whole
+     * response body first. The response has been sent by the time this returns.
+     */
+    private TDStatus streamViewRows(TDView view, TDQueryOptions options, long lastSequenceIndexed) {
+        TDStatus status = new TDStatus();
+        TDViewRowIterator rows = view.rowIteratorWithOptions(options, status);
+        if(rows == null) {
+            return status;
+        }
+
+        // Keep hold of the callback block: if the client goes away it's cleared by stop(), but
+        // it still has to be told that the response is finished.
+        TDRouterCallbackBlock callback = callbackBlock;
+
+        connection.setChunked(true);
+        connection.setResponseCode(TDStatus.OK);
+        connection.getResHeader().add("Content-Type", "application/json");
+        connection.getResHeader().add("Server", String.format("TouchDB %s", getVersionString()));
+        sendResponse();
+
+        ObjectMapper mapper = TDServer.getObjectMapper();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(VIEW_STREAM_BUFFER_SIZE);
+        int totalRows = 0;
+        try {
+            buffer.write("{\"rows\":[".getBytes());
+            writeStreamedData(buffer);
+            // Stop early if the client goes away:
+            while(rows.hasNext() && callbackBlock != null) {
+                if(totalRows > 0) {
+                    buffer.write(',');
+                }
+                buffer.write(mapper.writeValueAsBytes(rows.next()));
+                ++totalRows;
+                if(buffer.size() >= VIEW_STREAM_BUFFER_SIZE) {
+                    writeStreamedData(buffer);
+                }
+            }
+            String trailer = String.format("],\"total_rows\":%d,\"offset\":%d", totalRows, options.getSkip());
+            if(options.isUpdateSeq()) {
+                trailer += String.format(",\"update_seq\":%d", lastSequenceIndexed);
+            }
+            buffer.write((trailer + "}").getBytes());
+            writeStreamedData(buffer);
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error writing view rows", e);
+        } catch (SQLException e) {
+            // Too late to report this in the status; the client gets a truncated response
+            Log.e(TDDatabase.TAG, "Error reading view rows", e);
+        } finally {
+            rows.close();
+            if(options.getStale() == TDStaleness.TDStaleUpdateAfter) {
+                view.scheduleIndexUpdate();
+            }
+            if(callback != null) {
+                callback.onFinish();
+            }
+        }
+        return new TDStatus(0);
+    }
+
+    private void writeStreamedData(ByteArrayOutputStream buffer) {
+        if(callbackBlock != null && buffer.size() > 0) {
+            callbackBlock.onDataAvailable(buffer.toByteArray());
+        }
+        buffer.reset();
+    }
+
     public TDStatus do_GET_DesignDocument(TDDatabase _db, String designDocID, String viewName) {
         return queryDesignDoc(designDocID, viewName, null);
     }
+
+    @SuppressWarnings("unchecked")
+    public TDStatus do_POST_DesignDocument(TDDatabase _db, String designDocID, String viewName) {
+        Map<String,Object> bodyDict = getBodyAsDictionary();
+        if(bodyDict == null || !(bodyDict.get("keys") instanceof List)) {
+            return new TDStatus(TDStatus.BAD_REQUEST);
+        }
+        return queryDesignDoc(designDocID, viewName, (List<Object>)bodyDict.get("keys"));
+    }
 }
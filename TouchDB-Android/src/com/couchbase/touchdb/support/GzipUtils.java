@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+import com.couchbase.touchdb.TDDatabase;
+
+public class GzipUtils {
+
+    public static byte[] compress(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+        try {
+            GZIPOutputStream gos = new GZIPOutputStream(bos);
+            gos.write(data);
+            gos.close();
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error compressing data", e);
+            return null;
+        }
+        return bos.toByteArray();
+    }
+
+    public static byte[] decompress(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 2);
+        try {
+            GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(data));
+            byte[] buffer = new byte[8192];
+            int numRead;
+            while((numRead = gis.read(buffer)) > 0) {
+                bos.write(buffer, 0, numRead);
+            }
+            gis.close();
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error decompressing data", e);
+            return null;
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Gzips everything read from in into out. Closes neither stream.
+     */
+    public static void compress(InputStream in, OutputStream out) throws IOException {
+        GZIPOutputStream gos = new GZIPOutputStream(out);
+        copy(in, gos);
+        gos.finish();
+    }
+
+    /**
+     * Gunzips everything read from in into out. Closes neither stream.
+     */
+    public static void decompress(InputStream in, OutputStream out) throws IOException {
+        copy(new GZIPInputStream(in), out);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int numRead;
+        while((numRead = in.read(buffer)) > 0) {
+            out.write(buffer, 0, numRead);
+        }
+    }
+
+}
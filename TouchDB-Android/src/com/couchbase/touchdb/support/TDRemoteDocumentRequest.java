@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import com.couchbase.touchdb.TDBlobStore;
+import com.couchbase.touchdb.TDDocumentReader;
+
+/**
+ * A remote request whose response is a single document; the contents of its inline
+ * attachments are streamed into a blob store as the response is parsed.
+ */
+public class TDRemoteDocumentRequest extends TDRemoteRequest {
+
+    private TDBlobStore blobStore;
+
+    public TDRemoteDocumentRequest(HttpClientFactory clientFactory, String method, URL url, TDBlobStore blobStore, TDRemoteRequestCompletionBlock onCompletion) {
+        super(clientFactory, method, url, null, onCompletion);
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    protected Object parseResponse(InputStream stream) throws IOException {
+        return new TDDocumentReader(blobStore).readDocument(stream);
+    }
+
+}
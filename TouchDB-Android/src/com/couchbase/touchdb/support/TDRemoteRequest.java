@@ -2,6 +2,7 @@ package com.couchbase.touchdb.support;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 
 import org.apache.http.HttpEntity;
@@ -15,7 +16,8 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import android.os.Handler;
@@ -72,14 +74,24 @@ public class TDRemoteRequest implements Runnable {
 
         //set body if appropriate
         if(body != null && request instanceof HttpEntityEnclosingRequestBase) {
-            ObjectMapper mapper = new ObjectMapper();
-            byte[] bodyBytes = null;
-            try {
-                bodyBytes = mapper.writeValueAsBytes(body);
-            } catch (Exception e) {
-                Log.e(TDDatabase.TAG, "Error serializing body of request", e);
-            }
-            ByteArrayEntity entity = new ByteArrayEntity(bodyBytes);
+            // Serialize the body straight onto the connection as it's sent, so that attachments
+            // included as TDStreamedAttachmentData are encoded from the blob store on the fly.
+            // The entity is still repeatable: each writeTo serializes the body afresh (and each
+            // TDStreamedAttachmentData reopens its blob), so HttpClient can resend it on a retry.
+            EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectMapper mapper = new ObjectMapper();
+                    try {
+                        mapper.writeValue(out, body);
+                    } catch (IOException e) {
+                        Log.e(TDDatabase.TAG, "Error serializing body of request", e);
+                        throw e;
+                    }
+                }
+
+            });
             entity.setContentType("application/json");
             ((HttpEntityEnclosingRequestBase)request).setEntity(entity);
         }
@@ -97,8 +109,7 @@ public class TDRemoteRequest implements Runnable {
                 if(temp != null) {
                 	try {
 	                    InputStream stream = temp.getContent();
-	                    ObjectMapper mapper = new ObjectMapper();
-	                    Object fullBody = mapper.readValue(stream, Object.class);
+	                    Object fullBody = parseResponse(stream);
 	                    respondWithResult(fullBody, null);
                 	} finally {
                 		try { temp.consumeContent(); } catch (IOException e) {}
@@ -119,6 +130,14 @@ public class TDRemoteRequest implements Runnable {
 
     }
 
+    /**
+     * Parses the JSON response body into the result passed to the completion block.
+     */
+    protected Object parseResponse(InputStream stream) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(stream, Object.class);
+    }
+
     public void respondWithResult(final Object result, final Throwable error) {
         handler.post(new Runnable() {
 